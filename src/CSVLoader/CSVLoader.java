@@ -12,13 +12,20 @@ import org.apache.commons.lang3.StringUtils;
 import au.com.bytecode.opencsv.CSVReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Types;
+import java.util.HashMap;
+import java.util.Map;
  
 /**
  * Parse CSV file using OpenCSV library and load in given database table. 
  * 
- * NOTE: I think this class treats all values as text. Does not guarantee that
- * SQL types will be maintained. So far, haven't encountered any errors.
+ * Values are bound using the column types of the target table, read from the
+ * JDBC metadata: integer and floating point columns are bound as numbers,
+ * and only date columns are parsed with DateUtil. Columns whose type can't
+ * be determined are bound as text.
  * 
  * @author viralpatel.net, rammar
  */
@@ -29,9 +36,13 @@ public class CSVLoader {
     private static final String TABLE_REGEX = "\\$\\{table\\}";
     private static final String KEYS_REGEX = "\\$\\{keys\\}";
     private static final String VALUES_REGEX = "\\$\\{values\\}";
+	
+	/* The default number of rows inserted in a single JDBC batch. */
+	public static final int DEFAULT_BATCH_SIZE= 1000;
  
     private Connection connection;
     private char seprator;
+	private int batchSize= DEFAULT_BATCH_SIZE;
  
     /**
      * Public constructor to build CSVLoader object with
@@ -121,30 +132,24 @@ public class CSVLoader {
                 //delete data from table before loading csv
                 con.createStatement().execute("DELETE FROM " + tableName);
             }
+			
+			/* Look up the SQL type of each CSV column once, rather than
+			 * guessing the type of every value. */
+			Map<String, Integer> tableColumnTypes= getColumnTypes(con, tableName);
+			int[] columnTypes= new int[headerRow.length];
+			for (int i= 0; i < headerRow.length; ++i) {
+				Integer type= tableColumnTypes.get(headerRow[i].trim().toUpperCase());
+				columnTypes[i]= type == null ? Types.VARCHAR : type;
+			}
  
-            final int batchSize = 1000;
+			long startTime= System.currentTimeMillis();
             int count = 0;
-            Date date = null;
             while ((nextLine = csvReader.readNext()) != null) {
 				
                 if (null != nextLine) {
-                    int index = 1;
-                    for (String string : nextLine) {
-                        date = DateUtil.convertToDate(string);
-                        if (null != date) {
-                            ps.setDate(index++, new java.sql.Date(date
-                                    .getTime()));
-                        } else {
-							
-							/* Section modified by rammar to allow NULL values 
-							 * to be input into the DB. */
-							if (string.length() > 0 && !string.equals("\\N")) {								
-								ps.setString(index++, string);
-							} else {
-								ps.setNull(index++, Types.VARCHAR);
-								//ps.setString(index++, null); // can use this syntax also - not sure which is better
-							}
-						}
+                    for (int i= 0; i < nextLine.length; ++i) {
+						int type= i < columnTypes.length ? columnTypes[i] : Types.VARCHAR;
+						setValue(ps, i + 1, nextLine[i], type);
                     }
                     ps.addBatch();
                 }
@@ -153,9 +158,12 @@ public class CSVLoader {
                 }
             }
             ps.executeBatch(); // insert remaining records
-			System.out.println("[" + this.getClass().getSimpleName() + "]: " + 
-				count + " records loaded into " + tableName + " DB table");
             con.commit();
+			
+			long elapsedMillis= Math.max(System.currentTimeMillis() - startTime, 1);
+			System.out.println("[" + this.getClass().getSimpleName() + "]: " + 
+				count + " records loaded into " + tableName + " DB table in " +
+				elapsedMillis + " ms (" + (count * 1000L / elapsedMillis) + " rows/s)");
         } catch (Exception e) {
             con.rollback();
             e.printStackTrace();
@@ -172,6 +180,107 @@ public class CSVLoader {
         }
     }
  
+	
+	/**
+	 * Get the SQL type of each column of a table from the JDBC metadata.
+	 * @param con the DB connection
+	 * @param tableName the table name, in any case
+	 * @return a Map of java.sql.Types values keyed by upper case column name
+	 */
+	private static Map<String, Integer> getColumnTypes(Connection con, String tableName) throws SQLException {
+		Map<String, Integer> columnTypes= new HashMap<String, Integer>();
+		
+		DatabaseMetaData dbmd= con.getMetaData();
+		for (String name : new String[] {tableName, tableName.toUpperCase(), tableName.toLowerCase()}) {
+			ResultSet rs= dbmd.getColumns(null, null, name, null);
+			try {
+				while (rs.next()) {
+					columnTypes.put(rs.getString("COLUMN_NAME").toUpperCase(), rs.getInt("DATA_TYPE"));
+				}
+			} finally {
+				rs.close();
+			}
+			
+			if (!columnTypes.isEmpty()) {
+				break;
+			}
+		}
+		
+		return columnTypes;
+	}
+	
+	
+	/**
+	 * Bind a single CSV value using the SQL type of its column.
+	 * Empty values and "\N" are bound as NULL. Numbers that can't be parsed
+	 * are bound as text, leaving the conversion to the DB.
+	 * @param ps the insert statement
+	 * @param index the parameter index, starting at 1
+	 * @param value the CSV value
+	 * @param type the java.sql.Types type of the column
+	 */
+	private static void setValue(PreparedStatement ps, int index, String value, int type) throws SQLException {
+		/* Allow NULL values to be input into the DB. */
+		if (value.length() == 0 || value.equals("\\N")) {
+			ps.setNull(index, type);
+			return;
+		}
+		
+		try {
+			switch (type) {
+				case Types.TINYINT:
+				case Types.SMALLINT:
+				case Types.INTEGER:
+					ps.setInt(index, Integer.parseInt(value.trim()));
+					return;
+				case Types.BIGINT:
+					ps.setLong(index, Long.parseLong(value.trim()));
+					return;
+				case Types.FLOAT:
+				case Types.REAL:
+				case Types.DOUBLE:
+				case Types.DECIMAL:
+				case Types.NUMERIC:
+					ps.setDouble(index, Double.parseDouble(value.trim()));
+					return;
+				case Types.DATE:
+				case Types.TIMESTAMP:
+					Date date= DateUtil.convertToDate(value);
+					if (date != null) {
+						ps.setDate(index, new java.sql.Date(date.getTime()));
+						return;
+					}
+					break;
+			}
+		} catch (NumberFormatException nfe) {
+			// fall through and let the DB convert the text
+		}
+		
+		ps.setString(index, value);
+	}
+	
+	
+	/**
+	 * Get the number of rows inserted in a single JDBC batch.
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	
+	/**
+	 * Set the number of rows inserted in a single JDBC batch.
+	 * @param batchSize the batch size; must be at least 1
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("The batch size must be at least 1.");
+		}
+		this.batchSize= batchSize;
+	}
+	
+ 
     public char getSeprator() {
         return seprator;
     }
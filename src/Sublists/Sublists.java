@@ -2,9 +2,13 @@ package Sublists;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
 import java.util.Set;
 
 /**
@@ -18,7 +22,7 @@ public class Sublists {
 	 * @param args the command line arguments
 	 */
 	public static void main(String[] args) {
-		List test1= new LinkedList();
+		List<Integer> test1= new LinkedList<Integer>();
 		test1.addAll(Arrays.asList(new Integer[] {1,2,3,4,5}));
 		
 		System.out.println("Test list: " + test1);
@@ -36,7 +40,20 @@ public class Sublists {
 		System.out.println("Test list 2: " + test2);
 		System.out.println(sublists(test2, 3));
 		
-		//System.out.println(sublists(test2, 3));
+		/* the same sublists, one at a time without building the set. */
+		int count= 0;
+		for (Object sub : iterateSublists(test2, 3)) {
+			++count;
+		}
+		System.out.println("Sublists of test list 2 at depth 3: " + count);
+		
+		/* stop at the first sublist that no longer contains 1. */
+		for (List<Integer> sub : iterateSublists(test1, 3)) {
+			if (!sub.contains(1)) {
+				System.out.println("First sublist without 1: " + sub);
+				break;
+			}
+		}
 	}
 	
 	
@@ -49,22 +66,12 @@ public class Sublists {
 	 * @param input The input List
 	 * @param depth The maximum number of objects to remove from each sublist
 	 * @return unique List of all possible sublists after removing the amount of objects specified by depth
+	 * @see #iterateSublists(List, int) to get the sublists one at a time
 	 */
-	public static Set sublists(List input, int depth) {
-		Set output= new HashSet();
-		if (depth > 0) {
-			for (int i= 0; i != input.size(); ++i) {
-				List sub= mySubList(input,0, i);
-				sub.addAll(mySubList(input, i+1, input.size())); // addALL() not add()
-				
-				if (!sub.isEmpty())
-					output.add(sub);
-				
-				Set recursiveSub= sublists(sub, depth-1);
-				// Since there is no addAll for Set, iteratively add to Set
-				for (Object e : recursiveSub)
-					output.add(e);
-			}
+	public static <T> Set<List<T>> sublists(List<T> input, int depth) {
+		Set<List<T>> output= new HashSet<List<T>>();
+		for (List<T> sub : iterateSublists(input, depth)) {
+			output.add(sub);
 		}
 		
 		return output;
@@ -72,20 +79,125 @@ public class Sublists {
 	
 	
 	/**
-	 * Returns a new List object that is a portion of the input list between the specified
-	 * fromIndex, inclusive, and toIndex, exclusive.
-	 * @param original the input List
-	 * @param fromIndex low endpoint (inclusive) of this sublist
-	 * @param toIndex high endpoint (exclusive) of this sublist
-	 * @return a new List object of the input original
+	 * Iterate over the same sublists as {@link #sublists(List, int)}, without
+	 * creating them all first. Sublists are created one at a time as the
+	 * iteration proceeds, so callers can stop as soon as they find what they
+	 * need. Sublists are returned in order of increasing size k: those with
+	 * depth objects removed come first, then those with one object fewer
+	 * removed, and so on up to those with 1 object removed. Each combination
+	 * of positions in the input is returned exactly once, with the objects in
+	 * input order.
+	 * @param input The input List
+	 * @param depth The maximum number of objects to remove from each sublist
+	 * @return an Iterable over the non-empty sublists with 1 to depth objects removed
+	 */
+	public static <T> Iterable<List<T>> iterateSublists(final List<T> input, final int depth) {
+		return new Iterable<List<T>>() {
+			@Override
+			public Iterator<List<T>> iterator() {
+				return new SublistIterator<T>(input, depth);
+			}
+		};
+	}
+	
+	
+	/**
+	 * Iterates over the combinations of k positions of a List, keeping the
+	 * current positions in an index array.
 	 */
-	public static List mySubList(List original, int fromIndex, int toIndex) {
-		List sub= new ArrayList();
-		for (int i= fromIndex; i != toIndex; ++i) {
-			sub.add(original.get(i));
+	private static class CombinationIterator<T> implements Iterator<List<T>> {
+		
+		private final List<T> input;
+		private final int[] indexes;
+		private boolean hasNext;
+		
+		public CombinationIterator(List<T> input, int k) {
+			this.input= input instanceof RandomAccess ? input : new ArrayList<T>(input);
+			this.hasNext= k >= 0 && k <= input.size();
+			this.indexes= new int[Math.max(k, 0)];
+			for (int i= 0; i < indexes.length; ++i) {
+				indexes[i]= i;
+			}
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return hasNext;
+		}
+		
+		@Override
+		public List<T> next() {
+			if (!hasNext) {
+				throw new NoSuchElementException();
+			}
+			
+			List<T> combination= new ArrayList<T>(indexes.length);
+			for (int index : indexes) {
+				combination.add(input.get(index));
+			}
+			
+			/* Advance the rightmost index that can still move, and restart
+			 * the indexes after it right behind it. */
+			int i= indexes.length - 1;
+			while (i >= 0 && indexes[i] == input.size() - indexes.length + i) {
+				--i;
+			}
+			if (i < 0) {
+				hasNext= false;
+			} else {
+				++indexes[i];
+				for (int j= i + 1; j < indexes.length; ++j) {
+					indexes[j]= indexes[j - 1] + 1;
+				}
+			}
+			
+			return combination;
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
-				
-		return sub;
 	}
-
-}
\ No newline at end of file
+	
+	
+	/**
+	 * Iterates over the combinations of size - depth, ... size - 2, size - 1
+	 * objects of a List, excluding the empty combination.
+	 */
+	private static class SublistIterator<T> implements Iterator<List<T>> {
+		
+		private final List<T> input;
+		private int removed;
+		private Iterator<List<T>> current= Collections.<List<T>>emptyList().iterator();
+		
+		public SublistIterator(List<T> input, int depth) {
+			this.input= input instanceof RandomAccess ? input : new ArrayList<T>(input);
+			this.removed= Math.max(Math.min(depth, input.size() - 1), 0) + 1;
+		}
+		
+		@Override
+		public boolean hasNext() {
+			while (!current.hasNext() && removed > 1) {
+				--removed;
+				current= new CombinationIterator<T>(input, input.size() - removed);
+			}
+			
+			return current.hasNext();
+		}
+		
+		@Override
+		public List<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			
+			return current.next();
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
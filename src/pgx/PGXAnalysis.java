@@ -3,37 +3,43 @@ package pgx;
 import com.healthmarketscience.sqlbuilder.BinaryCondition;
 import com.healthmarketscience.sqlbuilder.ComboCondition;
 import com.healthmarketscience.sqlbuilder.Condition;
-import com.healthmarketscience.sqlbuilder.UnaryCondition;
 import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
-import jannovar.common.VariantType;
 import java.rmi.RemoteException;
-import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.ut.biolab.medsavant.MedSavantClient;
-import org.ut.biolab.medsavant.client.project.ProjectController;
-import org.ut.biolab.medsavant.client.reference.ReferenceController;
 import org.ut.biolab.medsavant.client.view.login.LoginController;
-import org.ut.biolab.medsavant.shared.appdevapi.DBAnnotationColumns;
 import org.ut.biolab.medsavant.shared.appdevapi.Variant;
 import org.ut.biolab.medsavant.shared.appdevapi.VariantIterator;
-import org.ut.biolab.medsavant.shared.db.TableSchema;
 import org.ut.biolab.medsavant.shared.format.AnnotationFormat;
 import org.ut.biolab.medsavant.shared.format.BasicVariantColumns;
-import org.ut.biolab.medsavant.shared.format.CustomField;
+import org.ut.biolab.medsavant.shared.format.ColumnDef;
 import org.ut.biolab.medsavant.shared.model.SessionExpiredException;
-import org.ut.biolab.medsavant.shared.serverapi.AnnotationManagerAdapter;
 import org.ut.biolab.medsavant.shared.serverapi.VariantManagerAdapter;
 import pgx.localDB.PGXDB;
 import pgx.localDB.PGXDBFunctions;
-import pgx.localDB.PGXDBFunctions.PGXMarker;
+import pgx.localDB.PGXKnowledgeBase;
 
 /**
  * Performs a pharmacogenomic analysis for this individual.
@@ -42,30 +48,78 @@ import pgx.localDB.PGXDBFunctions.PGXMarker;
  */
 public class PGXAnalysis {
 	
-	private static final String DBSNP_COLUMN= DBAnnotationColumns.DBSNP_TEXT;
 	private static final int DB_VARIANT_REQUEST_LIMIT= 500;
+	/* How often a thread waiting for a page of variants checks whether the
+	 * query should stop. */
+	private static final long PAGE_WAIT_POLL_MILLIS= 100;
+	static final long NO_DEADLINE= -1;
 	public static final double AF_THRESHOLD= 0.05;
-	private static final List<String> NOVEL_MUTATIONS= Arrays.asList(
-		new String[] {
-		VariantType.MISSENSE.toString(), VariantType.FS_DELETION.toString(),
-		VariantType.FS_INSERTION.toString(), VariantType.FS_SUBSTITUTION.toString(),
-		VariantType.FS_DUPLICATION.toString(), VariantType.NON_FS_DELETION .toString(),
-		VariantType.NON_FS_INSERTION.toString(), VariantType.NON_FS_SUBSTITUTION.toString(),
-		VariantType.NON_FS_DUPLICATION.toString(), VariantType.SPLICING.toString(),
-		VariantType.STOPGAIN.toString(), VariantType.START_LOSS.toString()
-		});
+	/* The columns ordering variants for keyset pagination, which together
+	 * are unique, and their indexes in a raw variant row. */
+	private static final ColumnDef[] KEYSET_COLUMNS= new ColumnDef[] {
+		BasicVariantColumns.DNA_ID, BasicVariantColumns.CHROM,
+		BasicVariantColumns.START_POSITION, BasicVariantColumns.ALT,
+		BasicVariantColumns.UPLOAD_ID, BasicVariantColumns.FILE_ID,
+		BasicVariantColumns.VARIANT_ID
+	};
+	private static final int[] KEYSET_COLUMN_INDEXES= new int[] {
+		BasicVariantColumns.INDEX_OF_DNA_ID, BasicVariantColumns.INDEX_OF_CHROM,
+		BasicVariantColumns.INDEX_OF_START_POSITION, BasicVariantColumns.INDEX_OF_ALT,
+		BasicVariantColumns.INDEX_OF_UPLOAD_ID, BasicVariantColumns.INDEX_OF_FILE_ID,
+		BasicVariantColumns.INDEX_OF_VARIANT_ID
+	};
+	
+	/* The maximum number of pages fetched in the background at once, across
+	 * all analyses. */
+	private static final int MAX_PAGE_PREFETCH_THREADS= 8;
+	private static final long PAGE_PREFETCH_THREAD_KEEP_ALIVE_SECONDS= 60;
 	
-	private static Connection pgxdbConn;
-	private static TableSchema ts= ProjectController.getInstance().getCurrentVariantTableSchema();
-	private static Map<String, Condition> standardPGXConditions;
-	private static Map<String, String> columns= getDbToHumanReadableMap();
-	private static List<PGXMarker> listOfAllMarkers;
-	private static List<Condition> novelPGXConditions;
+	/* Background threads used to prefetch the next page of a remote query.
+	 * Bounded, so page requests abandoned by stopped queries can't pile up;
+	 * further pages wait in the queue. */
+	private static final ThreadPoolExecutor PAGE_PREFETCH_EXECUTOR= new ThreadPoolExecutor(
+		MAX_PAGE_PREFETCH_THREADS, MAX_PAGE_PREFETCH_THREADS,
+		PAGE_PREFETCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+		new LinkedBlockingQueue<Runnable>(),
+		new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t= new Thread(r, PGXAnalysis.class.getSimpleName() + " page prefetch");
+				t.setDaemon(true); // don't prevent the client from exiting
+				return t;
+			}
+		});
+	static {
+		PAGE_PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+	}
 	
 	private String dnaID;
+	private PGXAnalysisSettings settings;
+	private PGXProjectMetadata metadata;
+	/* The knowledge base version used for this entire analysis, and its
+	 * marker lookups. */
+	private PGXKnowledgeBase kb;
+	private Map<String, List<String>> markerCoordinateToGenes;
+	private Map<String, Map<String, Integer>> geneLastMarkerPositions;
 	private List<PGXGene> pgxGenes= new LinkedList<PGXGene>();
-	private VariantManagerAdapter vma= MedSavantClient.VariantManager;
-	private boolean isCancelled= false;
+	private volatile boolean isCancelled= false;
+	private volatile boolean isTimedOut= false;
+	private boolean isComplete= false;
+	private long deadline;
+	/* The novel variant query, run while the known variants are retrieved,
+	 * its result once it has been waited for, and the genes reported before
+	 * it finished. */
+	private Future<List<Variant>> novelVariantsFuture;
+	private boolean isNovelVariantsWaitDone= false;
+	private List<Variant> novelVariants;
+	private Exception novelVariantsException;
+	private List<PGXGene> novelVariantsPendingGenes= new LinkedList<PGXGene>();
+	private final QueryMonitor queryMonitor= new QueryMonitor() {
+		@Override
+		public boolean isStopped() {
+			return shouldStop();
+		}
+	};
 	
 	
 	/**
@@ -73,43 +127,138 @@ public class PGXAnalysis {
 	 * @param dnaID the DNA ID for this individual
 	 */
 	public PGXAnalysis(String dnaID) throws SQLException, RemoteException, SessionExpiredException, PGXException {
+		this(dnaID, new PGXAnalysisSettings());
+	}
+	
+	
+	/**
+	 * Perform a pharmacogenomic analysis with the specified settings.
+	 * @param dnaID the DNA ID for this individual
+	 * @param settings the settings controlling how variants are retrieved
+	 */
+	public PGXAnalysis(String dnaID, PGXAnalysisSettings settings) throws SQLException, RemoteException, SessionExpiredException, PGXException {
 		this.dnaID= dnaID;
+		this.settings= settings;
+		this.deadline= getDeadline(settings);
 		
-		/* If no connection exists, initialize the local HyperSQL database for 
-		 * analyses. */
-		if (pgxdbConn == null) {			
-			PGXDB.initialize();
-			pgxdbConn= PGXDB.getConnection();
+		initializeStaticState();
+		this.metadata= PGXProjectMetadata.getCurrent();
+		initializeMarkerLookups();
+		fireAnalysisStarted();
+		
+		Map<String, PGXGene> genesBySymbol= createGenes();
+		
+		/* Look for novel rare pharmacogenomic variants for this individual
+		 * while the known variants are retrieved. These are retrieved for all
+		 * genes at once, so genes completed before they arrive are reported
+		 * without them and updated afterwards. */
+		ExecutorService novelVariantExecutor= Executors.newSingleThreadExecutor();
+		try {
+			novelVariantsFuture= submitNovelVariantQuery(novelVariantExecutor);
+			
+			/* Query the DB for this individual's pharmacogenomic genotypes. The
+			 * diplotype, activities and metabolizer class of each gene are 
+			 * assigned as soon as all its variants have been retrieved. */
+			queryVariants(genesBySymbol);
+			
+			completeNovelVariants();
+		} finally {
+			/* Stops the novel variant query if the analysis was stopped. */
+			novelVariantExecutor.shutdownNow();
+		}
+		
+		/* The novel variant query failed. */
+		if (novelVariantsException != null) {
+			rethrowQueryException(novelVariantsException);
 		}
 		
-		/* Once the PGx DB is initialized, initialize the static standard PGx
-		 * ComboCondition list if it's still empty. */
-		if (standardPGXConditions == null) {
-			standardPGXConditions= buildConditionList();
+		/* Interrupting the analysis thread cancels the analysis. */
+		if (Thread.currentThread().isInterrupted()) {
+			cancel();
 		}
 		
-		/* Once the PGx DB is initialized, initialize the static standard PGx
-		 * ComboCondition list for NOVEL variants, if it's still empty. */
-		if (novelPGXConditions == null) {
-			novelPGXConditions= buildNovelConditionList();
+		sortGenes();
+		this.isComplete= !isCancelled && !isTimedOut;
+	}
+	
+	
+	/**
+	 * Perform a pharmacogenomic analysis on variants that have already been
+	 * retrieved for this individual, for example by a cohort analysis.
+	 * @param dnaID the DNA ID for this individual
+	 * @param settings the analysis settings
+	 * @param metadata the project metadata used to retrieve the variants
+	 * @param knownVariants the variants for this individual retrieved with
+	 *	the condition for all PGx markers, in (chromosome, position, alt) order
+	 * @param novelVariants the variants for this individual retrieved with
+	 *	the novel variant condition for all genes, in (chromosome, position, alt) order
+	 */
+	PGXAnalysis(String dnaID, PGXAnalysisSettings settings, PGXProjectMetadata metadata,
+		List<Variant> knownVariants, List<Variant> novelVariants)
+		throws SQLException, RemoteException, SessionExpiredException, PGXException {
+		
+		this.dnaID= dnaID;
+		this.settings= settings;
+		this.metadata= metadata;
+		this.deadline= getDeadline(settings);
+		
+		initializeStaticState();
+		initializeMarkerLookups();
+		fireAnalysisStarted();
+		
+		/* Assign the retrieved variants to this individual's genes. */
+		Map<String, PGXGene> genesBySymbol= createGenes();
+		for (Variant var : novelVariants) {
+			addNovelVariant(var, genesBySymbol.values());
+		}
+		for (Variant var : knownVariants) {
+			addKnownVariant(var, genesBySymbol);
 		}
 		
-		/* Generate a static list of all PGX markers. */
-		if (listOfAllMarkers == null) {
-			listOfAllMarkers= getListOfAllMarkers();
+		/* Complete the analysis of each gene. */
+		for (PGXGene pg : genesBySymbol.values()) {
+			completeGene(pg);
 		}
 		
-		/* Query the DB for this individual's pharmacogenomic genotypes. */
-		queryVariants();
+		this.isComplete= !isCancelled;
+	}
+	
+	
+	/**
+	 * Initialize the local PGx DB shared by all analyses, if this hasn't been
+	 * done yet.
+	 */
+	static synchronized void initializeStaticState() throws SQLException {
 		
-		/* Assign the diplotypes for this individual's genes. */
-		getDiplotypes();
+		/* If the local HyperSQL database hasn't been loaded, initialize it for
+		 * analyses. */
+		if (!PGXDB.isInitialized()) {			
+			PGXDB.initialize();
+		}
+	}
+	
+	
+	/**
+	 * Get the marker lookups from the knowledge base version of the metadata.
+	 * They are built once per version and shared by all its analyses.
+	 */
+	private void initializeMarkerLookups() throws SQLException {
+		this.kb= metadata.getKnowledgeBase();
 		
-		/* Assign the activity scores/phenotypes and metabolizer class. */
-		getActivities();
+		/* Lookup of marker coordinates to genes. */
+		this.markerCoordinateToGenes= kb.getMarkerCoordinateGenes();
 		
-		/* Look for novel rare pharmacogenomic variants for this individual. */
-		getNovelVariants();
+		/* Lookup of the last marker position of each gene on each chromosome. */
+		this.geneLastMarkerPositions= kb.getLastMarkerPositions();
+	}
+	
+	
+	/**
+	 * Get the version of the PGx knowledge base used by this analysis.
+	 * @return the PGXKnowledgeBase
+	 */
+	public PGXKnowledgeBase getKnowledgeBase() {
+		return kb;
 	}
 	
 	
@@ -123,298 +272,751 @@ public class PGXAnalysis {
 	
 	
 	/**
-	 * Build the standard pharmacogenomic condition to be used when retrieving 
-	 * variants for any patient's analysis.
-	 * @return the ComboCondition to be used for all analyses
-	 * @deprecated This method creates a mega condition that retrieves all PGx
-	 *		variants from the DB. However, as the PGx DB grows, this condition
-	 *		will become unreasonably large, and is limited by the
-	 *		'max_allowed_packet' property in MySQL. Replaced by {@link #buildConditionList()}
+	 * Run query on remote server and return a list of Variants.
+	 * @param query the query to run
+	 * @return a list of Variants; null if the analysis was stopped before
+	 *	all the variants were retrieved.
 	 */
-	@Deprecated
-	private static ComboCondition buildCondition() {
-		ComboCondition query= new ComboCondition(ComboCondition.Op.OR);
+	private List<Variant> runRemoteQuery(Condition query) throws SQLException, RemoteException, SessionExpiredException{
+		final List<Variant> output= new LinkedList<Variant>();
 		
-		/* Get all relevant genes. */
-		List<String> genes= new LinkedList<String>();
-		try {
-			genes= PGXDBFunctions.getGenes();
-		} catch (SQLException se) {
-			se.printStackTrace();
+		boolean isQueryComplete= streamRemoteQuery(query, new VariantConsumer() {
+			@Override
+			public void consume(Variant var) {
+				output.add(var);
+			}
+		});
+		
+		return isQueryComplete ? output : null;
+	}
+	
+	
+	/**
+	 * Run query on remote server and pass each Variant to the consumer as it
+	 * is retrieved. Stops within one page if the analysis is cancelled or
+	 * runs out of time, or if the thread is interrupted.
+	 * @param query the query to run
+	 * @param consumer receives each Variant, in (DNA ID, chromosome, position, alt) order
+	 * @return true if all the variants were passed to the consumer, false if
+	 *	the analysis was stopped first
+	 */
+	private boolean streamRemoteQuery(Condition query, VariantConsumer consumer)
+		throws SQLException, RemoteException, SessionExpiredException {
+		
+		if (!settings.isVariantCacheEnabled()) {
+			return streamRemoteQuery(query, consumer, null);
 		}
 		
-		/* Get all relevant markers. */
-		List<String> markers= new LinkedList<String>();
-		try {
-			for (String g : genes) {
-				markers.addAll(PGXDBFunctions.getMarkers(g));
+		/* Use the rows cached for this query, if they are still valid. */
+		int projectID= metadata.getProjectID();
+		int referenceID= metadata.getReferenceID();
+		PGXVariantCache cache= PGXVariantCache.getInstance();
+		String cacheKey= PGXVariantCache.getKey(projectID, referenceID, dnaID, query);
+		List<Object[]> cachedRows= cache.get(cacheKey, projectID, referenceID, query);
+		if (cachedRows != null) {
+			VariantIterator variantIterator= new VariantIterator(cachedRows, metadata.getAnnotationFormats());
+			while (variantIterator.hasNext()) {
+				consumer.consume(variantIterator.next());
 			}
- 		} catch (Exception pe) {
-			pe.printStackTrace();
+			return true;
 		}
 		
-		
-		/* Add all markers to the ComboCondition.
-		 * NOTE: this is hardcoded for now, but will need to be changed if the
-		 * dbSNP annotation DB is updated. */
-		for (String m : markers) {
-			query.addCondition(
-				BinaryCondition.equalTo(ts.getDBColumn(columns.get(DBSNP_COLUMN)), m));
+		/* Only cache complete results. */
+		List<Object[]> rows= new ArrayList<Object[]>();
+		boolean isQueryComplete= streamRemoteQuery(query, consumer, rows);
+		if (isQueryComplete) {
+			cache.put(cacheKey, rows);
 		}
 		
-		return query;		
+		return isQueryComplete;
+	}
+	
+	
+	/**
+	 * Run query on remote server and pass each Variant to the consumer as it
+	 * is retrieved, bypassing the variant cache.
+	 * @param query the query to run
+	 * @param consumer receives each Variant, in (DNA ID, chromosome, position, alt) order
+	 * @param rowSink receives all the raw rows retrieved; may be null
+	 * @return true if all the variants were passed to the consumer, false if
+	 *	the analysis was stopped first
+	 */
+	private boolean streamRemoteQuery(Condition query, VariantConsumer consumer, List<Object[]> rowSink)
+		throws SQLException, RemoteException, SessionExpiredException {
+		
+		try {
+			return streamVariants(metadata, query, consumer, queryMonitor, rowSink);
+		} catch (InterruptedException ie) {
+			/* Keep the interrupt status for the caller. Worker threads are
+			 * interrupted when the analysis stops, for example when it runs
+			 * out of time, so this is not a cancellation in itself. */
+			Thread.currentThread().interrupt();
+			return false;
+		}
 	}
 	
 	
 	/**
-	 * Build the standard pharmacogenomic conditions to be used when retrieving 
-	 * variants for any patient's analysis and store these in a list.
-	 * @return a Map of Conditions to be used for all PGx analyses
-	 * @throws SQLException
+	 * Run query on remote server and pass each Variant to the consumer as it
+	 * is decoded, without storing the full result set.
+	 * 
+	 * Variants are retrieved in pages of at most DB_VARIANT_REQUEST_LIMIT
+	 * rows to allow for a cancellation. Rather than paging with a growing
+	 * offset, which makes the DB rescan all previous rows for every page,
+	 * rows are ordered by (DNA ID, chromosome, position, alt, upload ID, file
+	 * ID, variant ID) and each page resumes after the last key seen
+	 * (keyset/seek pagination). The DNA ID leads the key so that queries
+	 * spanning several individuals can be paged as well. The same site can be
+	 * stored more than once, for example by another upload or as a split
+	 * multi-allelic variant, so the variant's own (upload ID, file ID,
+	 * variant ID) ends the key to make it unique. A page with fewer rows than the limit is the last one,
+	 * so no extra empty request is needed to detect the end of the results.
+	 * Pages are fetched in the background: while the current page is passed
+	 * to the consumer, the next page is prefetched. While waiting for a page,
+	 * the monitor is checked regularly, so a stopped query returns promptly
+	 * and abandons the outstanding page request.
+	 * 
+	 * @param metadata the metadata for the project being queried
+	 * @param query the query to run
+	 * @param consumer receives each Variant, in (DNA ID, chromosome, position, alt) order
+	 * @param monitor checked before each page to see if the query should stop
+	 * @param rowSink receives all the raw rows retrieved, for example to cache
+	 *	them; may be null
+	 * @return true if all the variants were passed to the consumer, false if
+	 *	the monitor stopped the query first
+	 * @throws InterruptedException if the thread is interrupted while waiting for a page
 	 */
-	private static Map<String, Condition> buildConditionList() throws SQLException {
-		Map<String, Condition> queryMap= new HashMap<String, Condition>();
+	static boolean streamVariants(PGXProjectMetadata metadata, Condition query, VariantConsumer consumer,
+		QueryMonitor monitor, List<Object[]> rowSink)
+		throws SQLException, RemoteException, SessionExpiredException, InterruptedException {
+		
+		AnnotationFormat[] annotationFormats= metadata.getAnnotationFormats();
 		
-		/* Get all relevant markers for a particular gene and create a
-		 * ComboCondition for that set. Then add it to the List. */
-			for (String g : PGXDBFunctions.getGenes()) {
-				// generate a new query for this gene
-				ComboCondition query= new ComboCondition(ComboCondition.Op.OR);
+		Future<List<Object[]>> page= submitRemotePage(metadata, query, null);
+		try {
+			while (page != null) {
+				/* If the query is stopped, the page is still pending and is
+				 * cancelled below. */
+				List<Object[]> rows= waitForResult(page, monitor);
+				if (rows == null) {
+					return false;
+				}
+				page= null;
 				
-				try {
-					/* Add all the marker positions for this gene.
-					 * NOTE: You can also search for variants using the dbSNP rsID,
-					 * however, then you rely on the DB to be up-to-date and annotated
-					 * correctly, which is not always the case. It's better to query
-					 * variants by chromosomal coordinates. Original code is commented
-					 * out below. */
-					for (PGXMarker pgxm : PGXDBFunctions.getMarkerInfo(g)) {
-						ComboCondition variantCondition= new ComboCondition(ComboCondition.Op.AND);
-						variantCondition.addCondition(
-							BinaryCondition.equalTo(ts.getDBColumn(BasicVariantColumns.CHROM), pgxm.chromosome));
-						variantCondition.addCondition(
-							BinaryCondition.equalTo(ts.getDBColumn(BasicVariantColumns.START_POSITION), Integer.parseInt(pgxm.position)));	
-						
-						query.addCondition(variantCondition);
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
+				/* Start fetching the next page before processing this one. A
+				 * short page means there are no more rows. */
+				if (rows.size() == DB_VARIANT_REQUEST_LIMIT) {
+					page= submitRemotePage(metadata, query, rows.get(rows.size() - 1));
 				}
 				
-				// add this gene-query pair to the list
-				queryMap.put(g, query);
+				if (rowSink != null) {
+					rowSink.addAll(rows);
+				}
+				
+				// pass all the variants from the current batch to the consumer
+				VariantIterator variantIterator= new VariantIterator(rows, annotationFormats);
+				while (variantIterator.hasNext()) {
+					consumer.consume(variantIterator.next());
+				}
 			}
+		} finally {
+			/* Only has an effect if the page is no longer needed because
+			 * the query was stopped or failed. Interrupts the prefetch
+			 * thread, or removes the request if it hasn't started. */
+			if (page != null) {
+				page.cancel(true);
+				PAGE_PREFETCH_EXECUTOR.purge();
+			}
+		}
 		
-		return queryMap;		
+		return true;
 	}
 	
 	
-	/** 
-	 * Build the standard pharmacogenomic conditions for NOVEL variants.
-	 * @return a List of Conditions to be used for all PGx analyses of novel variants
-	 * @throws SQLException
-	 */
-	private static List<Condition> buildNovelConditionList() throws SQLException, RemoteException, SessionExpiredException {
-			List<Condition> output= new LinkedList<Condition>();
-		
-			/* Get all genic non-synonymous variants. */
-			ComboCondition mutationCondition= new ComboCondition(ComboCondition.Op.OR);
-			for (String mutationEffect : NOVEL_MUTATIONS) {
-				mutationCondition.addCondition(
-					BinaryCondition.iLike(ts.getDBColumn(BasicVariantColumns.JANNOVAR_EFFECT), mutationEffect + "%"));
+	/**
+	 * Start fetching a single page of rows for this query in the background.
+	 * @param metadata the metadata for the project being queried
+	 * @param query the query to run
+	 * @param lastRow the last row of the previous page; null for the first page
+	 * @return the Future for the page of rows
+	 */
+	private static Future<List<Object[]>> submitRemotePage(final PGXProjectMetadata metadata,
+		final Condition query, final Object[] lastRow) {
+		
+		return PAGE_PREFETCH_EXECUTOR.submit(new Callable<List<Object[]>>() {
+			@Override
+			public List<Object[]> call() throws Exception {
+				return getRemotePage(metadata, query, lastRow);
 			}
-			output.add(mutationCondition);	
-			
-			/* For each of the allele frequency columns, check if the allele 
-			 * frequency is below threshold. If allele frequency at the position
-			 * is null, also report it. */
-			ComboCondition afCondition= new ComboCondition(ComboCondition.Op.OR);
-			AnnotationManagerAdapter am= MedSavantClient.AnnotationManagerAdapter;
-			Map<String, Set<CustomField>> fieldMap= 
-				am.getAnnotationFieldsByTag(LoginController.getInstance().getSessionID(), true);
-			Set<CustomField> columnNames= fieldMap.get(CustomField.ALLELE_FREQUENCY_TAG);
-			for (CustomField cf : columnNames) {
-				DbColumn afColumn= ts.getDBColumn(cf.getColumnName());
-				// include variant if AF is below threshold
-				afCondition.addCondition(
-					BinaryCondition.lessThan(afColumn, AF_THRESHOLD, true));
-				// include variant even if AF information is missing
-				afCondition.addCondition(UnaryCondition.isNull(afColumn));
+		});
+	}
+	
+	
+	/**
+	 * Wait for the result of a remote query, checking the monitor regularly.
+	 * @param future the Future for the result
+	 * @param monitor checked while waiting to see if the query should stop
+	 * @return the result; null if the monitor stopped the query first
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	private static <T> T waitForResult(Future<T> future, QueryMonitor monitor)
+		throws SQLException, RemoteException, SessionExpiredException, InterruptedException {
+		
+		while (!monitor.isStopped()) {
+			try {
+				return future.get(PAGE_WAIT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException te) {
+				// not done yet; check the monitor again
+			} catch (ExecutionException ee) {
+				rethrowQueryException(ee.getCause());
 			}
-			output.add(afCondition);
-			
-			return output;
+		}
+		
+		return null;
 	}
 	
 	
 	/**
-	 * Run query on remote server and return a list of Variants.
+	 * Get a single page of rows for this query from the remote server.
+	 * @param metadata the metadata for the project being queried
 	 * @param query the query to run
-	 * @return a list of Variants.
+	 * @param lastRow the last row of the previous page; null for the first page
+	 * @return a List of at most DB_VARIANT_REQUEST_LIMIT rows
 	 */
-	private List<Variant> runRemoteQuery(Condition query) throws SQLException, RemoteException, SessionExpiredException{
-		List<Variant> output= new LinkedList<Variant>();
+	private static List<Object[]> getRemotePage(PGXProjectMetadata metadata, Condition query,
+		Object[] lastRow) throws SQLException, RemoteException, SessionExpiredException {
 		
-		/* For each query, a VariantIterator will be returned. When the Iterator
-		* is null, stop getting more VariantIterators. Iterate while
-		* this object hasNext() and store the Variant objects in a List of
-		* Variant objects. Variants are retrieved in chunks based on a request
-		* limit offset to allow for a cancellation. */
 		Condition[][] conditionMatrix= new Condition[1][1];
-		conditionMatrix[0][0]= query;
-
-		int position= 0;
-		// initiate VariantIterator for first batch
-		List<Object[]> rows= vma.getVariants(LoginController.getInstance().getSessionID(),
-			ProjectController.getInstance().getCurrentProjectID(),
-			ReferenceController.getInstance().getCurrentReferenceID(),
-			conditionMatrix, position, DB_VARIANT_REQUEST_LIMIT);		
-		VariantIterator variantIterator= new VariantIterator(rows, ProjectController.getInstance().getCurrentAnnotationFormats());
-		while (variantIterator.hasNext()) {
-			// add all the variants to the list from the current batch
-			while (variantIterator != null && variantIterator.hasNext()) {
-				output.add(variantIterator.next());
+		conditionMatrix[0][0]= getPageCondition(metadata, query, lastRow);
+		
+		VariantManagerAdapter vma= MedSavantClient.VariantManager;
+		return vma.getVariants(LoginController.getInstance().getSessionID(),
+			metadata.getProjectID(), metadata.getReferenceID(),
+			conditionMatrix, 0, DB_VARIANT_REQUEST_LIMIT, getKeysetOrderColumns(metadata));
+	}
+	
+	
+	/**
+	 * Get the columns used to order variants for keyset pagination.
+	 * @param metadata the metadata for the project being queried
+	 * @return the column names in (DNA ID, chromosome, position, alt, upload
+	 *	ID, file ID, variant ID) order
+	 */
+	private static String[] getKeysetOrderColumns(PGXProjectMetadata metadata) {
+		String[] columnNames= new String[KEYSET_COLUMNS.length];
+		for (int i= 0; i != KEYSET_COLUMNS.length; ++i) {
+			columnNames[i]= metadata.getTableSchema().getDBColumn(KEYSET_COLUMNS[i]).getColumnNameSQL();
+		}
+		
+		return columnNames;
+	}
+	
+	
+	/**
+	 * Get the condition for the page of variants following the last row
+	 * retrieved, ordered by (DNA ID, chromosome, position, alt, upload ID,
+	 * file ID, variant ID).
+	 * @param metadata the metadata for the project being queried
+	 * @param query the query being paged
+	 * @param lastRow the last row of the previous page; null for the first page
+	 * @return the query restricted to keys after lastRow
+	 */
+	private static Condition getPageCondition(PGXProjectMetadata metadata, Condition query, Object[] lastRow) {
+		if (lastRow == null) {
+			return query;
+		}
+		
+		/* Built from the last key column backwards:
+		 * (dna > d) OR (dna = d AND ((chrom > c) OR (chrom = c AND (...
+		 * (file = f AND variant > v))))) */
+		Condition afterLastKeyCondition= null;
+		for (int i= KEYSET_COLUMNS.length - 1; i >= 0; --i) {
+			DbColumn column= metadata.getTableSchema().getDBColumn(KEYSET_COLUMNS[i]);
+			Object lastValue= lastRow[KEYSET_COLUMN_INDEXES[i]];
+			Condition greaterCondition= BinaryCondition.greaterThan(column, lastValue, false);
+			if (afterLastKeyCondition == null) {
+				afterLastKeyCondition= greaterCondition;
+				continue;
+			}
+			
+			ComboCondition sameValueCondition= new ComboCondition(ComboCondition.Op.AND);
+			sameValueCondition.addCondition(BinaryCondition.equalTo(column, lastValue));
+			sameValueCondition.addCondition(afterLastKeyCondition);
+			
+			ComboCondition afterCondition= new ComboCondition(ComboCondition.Op.OR);
+			afterCondition.addCondition(greaterCondition);
+			afterCondition.addCondition(sameValueCondition);
+			afterLastKeyCondition= afterCondition;
+		}
+		
+		ComboCondition pageCondition= new ComboCondition(ComboCondition.Op.AND);
+		pageCondition.addCondition(query);
+		pageCondition.addCondition(afterLastKeyCondition);
+		
+		return pageCondition;
+	}
+	
+	
+	/**
+	 * Get all pharmacogenomic variants for this individual and complete the
+	 * analysis of each gene as its variants are retrieved. If the analysis is
+	 * stopped, only the genes whose variants were all retrieved are completed.
+	 * @param genesBySymbol the PGXGene objects keyed by gene symbol, in sorted gene order
+	 */
+	private void queryVariants(Map<String, PGXGene> genesBySymbol)
+		throws SQLException, RemoteException, SessionExpiredException {
+		
+		if (settings.getQueryMode() == PGXAnalysisSettings.QueryMode.SINGLE_QUERY) {
+			queryVariantsInSingleQuery(genesBySymbol);
+		} else if (settings.getQueryMode() == PGXAnalysisSettings.QueryMode.CONCURRENT) {
+			queryVariantsConcurrently(genesBySymbol.values());
+		} else {
+			for (PGXGene pg : genesBySymbol.values()) {
+				List<Variant> variants= runRemoteQuery(getGeneQuery(pg));
+				
+				/* If analysis has been stopped, the last query is incomplete,
+				 * so stop querying without keeping it. */
+				if (variants == null) {
+					break;
+				}
+				
+				completeGene(pg, variants);
 			}
-
-			// increment the request limit
-			position += DB_VARIANT_REQUEST_LIMIT;
-
-			// Get the next batch 
-			rows= vma.getVariants(LoginController.getInstance().getSessionID(),
-				ProjectController.getInstance().getCurrentProjectID(),
-				ReferenceController.getInstance().getCurrentReferenceID(),
-				conditionMatrix, position, DB_VARIANT_REQUEST_LIMIT);		
-			variantIterator= new VariantIterator(rows, ProjectController.getInstance().getCurrentAnnotationFormats());
 		}
+	}
+	
+	
+	/**
+	 * Get the query for the variants of a single gene for this individual.
+	 * @param pg the PGXGene
+	 * @return the query Condition
+	 */
+	private Condition getGeneQuery(PGXGene pg) throws SQLException {
+		/* Take the standard combocondition for this gene and AND it to the
+		 * DNA ID for this individual before submitting for variants. */
+		ComboCondition query= new ComboCondition(ComboCondition.Op.AND);
+		query.addCondition(
+			BinaryCondition.equalTo(metadata.getTableSchema().getDBColumn(BasicVariantColumns.DNA_ID), dnaID));
+		query.addCondition(metadata.getStandardConditions().get(pg.getGene()));
 		
-		return output;
+		return query;
 	}
 	
 	
 	/**
-	 * Get all pharmacogenomic variants for this individual.
+	 * Get all pharmacogenomic variants for this individual using a single
+	 * remote query for all genes. Each returned variant is assigned to its
+	 * gene(s) by looking up the variant coordinates locally.
+	 * 
+	 * Variants are returned in (chromosome, position, alt) order, so a gene
+	 * is completed as soon as the results have moved past its last marker on
+	 * each of its chromosomes, rather than waiting for the whole query.
+	 * @param genesBySymbol the PGXGene objects keyed by gene symbol, in sorted gene order
 	 */
-	private void queryVariants() throws SQLException, RemoteException, SessionExpiredException {
-		/* Iterate through all gene conditions. */
-		List<String> allGeneKeys= new ArrayList<String>(standardPGXConditions.keySet());
+	private void queryVariantsInSingleQuery(final Map<String, PGXGene> genesBySymbol)
+		throws SQLException, RemoteException, SessionExpiredException {
+		
+		/* AND the condition for the markers of all genes to the DNA ID for
+		 * this individual. */
+		ComboCondition query= new ComboCondition(ComboCondition.Op.AND);
+		query.addCondition(
+			BinaryCondition.equalTo(metadata.getTableSchema().getDBColumn(BasicVariantColumns.DNA_ID), dnaID));
+		query.addCondition(metadata.getAllMarkersCondition());
+		
+		/* Assign each returned variant to the gene(s) with a marker at this
+		 * position as it is retrieved, and complete the genes it has moved past. */
+		final List<PGXGene> pendingGenes= new LinkedList<PGXGene>(genesBySymbol.values());
+		final Set<String> passedChromosomes= new HashSet<String>();
+		boolean isQueryComplete= streamRemoteQuery(query, new VariantConsumer() {
+			private String currentChromosome;
+			
+			@Override
+			public void consume(Variant var) {
+				/* Results never return to a chromosome once they have moved on. */
+				if (currentChromosome != null && !currentChromosome.equals(var.getChromosome())) {
+					passedChromosomes.add(currentChromosome);
+				}
+				currentChromosome= var.getChromosome();
+				
+				Iterator<PGXGene> pendingIterator= pendingGenes.iterator();
+				while (pendingIterator.hasNext()) {
+					PGXGene pg= pendingIterator.next();
+					if (isPastLastMarker(pg, var, passedChromosomes)) {
+						pendingIterator.remove();
+						completeGene(pg);
+					}
+				}
+				
+				addKnownVariant(var, genesBySymbol);
+			}
+		});
+		
+		/* Genes without variants after their last marker are only complete
+		 * once all the results have been retrieved. */
+		if (isQueryComplete) {
+			for (PGXGene pg : pendingGenes) {
+				completeGene(pg);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Check if the results of a query ordered by (chromosome, position, alt)
+	 * have moved past all the markers of this gene.
+	 * @param pg the PGXGene
+	 * @param var the current variant
+	 * @param passedChromosomes the chromosomes the results have moved past
+	 * @return true if no more variants can be returned for this gene, false otherwise
+	 */
+	private boolean isPastLastMarker(PGXGene pg, Variant var, Set<String> passedChromosomes) {
+		Map<String, Integer> lastPositions= geneLastMarkerPositions.get(pg.getGene());
+		for (String chromosome : lastPositions.keySet()) {
+			boolean isPast= passedChromosomes.contains(chromosome) ||
+				(chromosome.equals(var.getChromosome()) && var.getStart() > lastPositions.get(chromosome));
+			if (!isPast) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * Create the gene objects for all PGx genes, so that genes without
+	 * variants are still reported.
+	 * @return a Map of the created PGXGene objects keyed by gene symbol, in sorted gene order
+	 */
+	private Map<String, PGXGene> createGenes() throws SQLException {
+		List<String> allGeneKeys= new ArrayList<String>(metadata.getStandardConditions().keySet());
 		// Sort the list of genes by gene symbol for convenience later
 		Collections.sort(allGeneKeys);
+		
+		Map<String, PGXGene> genesBySymbol= new LinkedHashMap<String, PGXGene>();
 		for (String geneKey : allGeneKeys) {
-			/* The variants for this gene. */
-			PGXGene pgxVariants= new PGXGene(geneKey);
-			
-			/* Take the standard combocondition and AND it to the DNA ID for this
-			 * individual before submitting for variants. */
-			ComboCondition query= new ComboCondition(ComboCondition.Op.AND);
-			query.addCondition(
-				BinaryCondition.equalTo(ts.getDBColumn(BasicVariantColumns.DNA_ID), dnaID));
-			query.addCondition(standardPGXConditions.get(geneKey));
-			
-			/* Once query is built, run it on the remote server. */
-			List<Variant> retrievedVariants= runRemoteQuery(query);			
-			
-			/* Add variants to the list for this PGx gene. */
-			for (Variant var : retrievedVariants) {
-				pgxVariants.addVariant(var);
+			genesBySymbol.put(geneKey, new PGXGene(geneKey));
+		}
+		
+		return genesBySymbol;
+	}
+	
+	
+	/**
+	 * Assign a variant to the gene(s) with a marker at its position. Variants
+	 * that are not at a marker position are dropped.
+	 * @param var the variant
+	 * @param genesBySymbol the PGXGene objects keyed by gene symbol
+	 */
+	private void addKnownVariant(Variant var, Map<String, PGXGene> genesBySymbol) {
+		List<String> genes= markerCoordinateToGenes.get(
+			PGXKnowledgeBase.getCoordinateKey(var.getChromosome(), Long.toString(var.getStart())));
+		if (genes != null) {
+			for (String gene : genes) {
+				genesBySymbol.get(gene).addVariant(var);
 			}
-			
-			/* Add the current gene-variant object to the list. */
-			pgxGenes.add(pgxVariants);
-			
-			/* If analysis has been cancelled, stop querying. */
-			if (isCancelled) {
-				return;
+		}
+	}
+	
+	
+	/**
+	 * Add the variants retrieved for this gene's markers and complete its
+	 * analysis.
+	 * @param pg the PGXGene
+	 * @param variants the variants retrieved with this gene's query
+	 */
+	private void completeGene(PGXGene pg, List<Variant> variants) {
+		/* Add variants to the list for this PGx gene. Only keep variants
+		 * at this gene's marker positions, since position ranges in the
+		 * query can also return other variants. */
+		for (Variant var : variants) {
+			if (isPGXMarkerForGene(var, pg.getGene())) {
+				pg.addVariant(var);
+			}
+		}
+		
+		completeGene(pg);
+	}
+	
+	
+	/**
+	 * Notify the listeners of the project metadata used by this analysis.
+	 */
+	private void fireAnalysisStarted() {
+		for (PGXAnalysisListener listener : settings.getAnalysisListeners()) {
+			listener.analysisStarted(dnaID, metadata);
+		}
+	}
+	
+	
+	/**
+	 * Complete the analysis of a gene whose variants have all been retrieved:
+	 * add its novel variants if they have been retrieved, assign its
+	 * diplotype, haplotype activities and metabolizer class, add it to the
+	 * analyzed genes and notify the listeners.
+	 * @param pg the PGXGene
+	 */
+	private void completeGene(PGXGene pg) {
+		/* Don't wait for the novel variant query; the gene is updated once it
+		 * finishes. */
+		if (novelVariantsFuture != null) {
+			if (novelVariantsFuture.isDone() && getNovelVariants() != null) {
+				assignNovelVariants(pg, getNovelVariants());
+			} else {
+				pg.setNovelVariantsPending();
+				novelVariantsPendingGenes.add(pg);
 			}
 		}
+		
+		/* Assign the diplotype for this gene. */
+		try {
+			pg.setDiplotype(PGXDBFunctions.getDiplotype(kb, pg));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		
+		/* Set the haplotype activities. */
+		pg.setMaternalActivity(PGXDBFunctions.getActivities(kb, pg.getGene(), pg.getMaternalHaplotype()));
+		pg.setPaternalActivity(PGXDBFunctions.getActivities(kb, pg.getGene(), pg.getPaternalHaplotype()));
+		
+		/* Set the metabolizer class based on the haplotype activities. */
+		pg.setMetabolizerClass(PGXDBFunctions.getMetabolizerClass(kb, pg.getMaternalActivity(), pg.getPaternalActivity()));
+		
+		pgxGenes.add(pg);
+		
+		for (PGXAnalysisListener listener : settings.getAnalysisListeners()) {
+			listener.geneAnalyzed(dnaID, pg);
+		}
+	}
+	
+	
+	/**
+	 * Sort the analyzed genes by gene symbol, since genes may be completed
+	 * out of order.
+	 */
+	private void sortGenes() {
+		Collections.sort(pgxGenes, new Comparator<PGXGene>() {
+			@Override
+			public int compare(PGXGene pg1, PGXGene pg2) {
+				return pg1.getGene().compareTo(pg2.getGene());
+			}
+		});
 	}
 	
 	
 	/**
-	 * Get all novel and rare pharmacogenomic variants for this individual.
-	 * @precondition	pgxGenes must already have been initialized by running queryVariants()
+	 * Start retrieving all novel and rare pharmacogenomic variants for this
+	 * individual in the background.
+	 * @param executor runs the query
+	 * @return the Future for the novel variants, in (chromosome, position,
+	 *	alt) order; null if the analysis was stopped before all of them were
+	 *	retrieved
 	 */
-	private void getNovelVariants() throws SQLException, RemoteException, SessionExpiredException, PGXException {
-		/* If analysis has been cancelled, stop. */
-		if (isCancelled) {
+	private Future<List<Variant>> submitNovelVariantQuery(ExecutorService executor) throws SQLException {
+		/* Get variants for this patient/DNA ID and all the PGx genes. */
+		ComboCondition query= new ComboCondition(ComboCondition.Op.AND);
+		query.addCondition(
+			BinaryCondition.equalTo(metadata.getTableSchema().getDBColumn(BasicVariantColumns.DNA_ID), dnaID));
+		query.addCondition(metadata.getNovelVariantCondition());
+		
+		final Condition novelVariantQuery= query;
+		return executor.submit(new Callable<List<Variant>>() {
+			@Override
+			public List<Variant> call() throws Exception {
+				/* If analysis has been cancelled or is out of time, stop. */
+				if (shouldStop()) {
+					return null;
+				}
+				return runRemoteQuery(novelVariantQuery);
+			}
+		});
+	}
+	
+	
+	/**
+	 * Add the novel variants to the genes that were reported before they
+	 * were retrieved, and notify the listeners.
+	 */
+	private void completeNovelVariants() {
+		if (novelVariantsPendingGenes.isEmpty()) {
 			return;
 		}
 		
-		/* Iterate through all previously stored PGXGene objects and get all 
-		 * low allele frequency variants for these genes. */
-		for (PGXGene pg : pgxGenes) {
-			String geneSymbol= pg.getGene();
-			List<PGXMarker> existingMarkers= PGXDBFunctions.getMarkerInfo(geneSymbol);
+		/* If the analysis was stopped first, the genes stay pending. */
+		List<Variant> variants= getNovelVariants();
+		if (variants == null) {
+			return;
+		}
 		
-			ComboCondition query= new ComboCondition(ComboCondition.Op.AND);
-			
-			/* Get variants for this patient/DNA ID and this PGx gene. */
-			query.addCondition(
-				BinaryCondition.equalTo(ts.getDBColumn(BasicVariantColumns.DNA_ID), dnaID));
-			query.addCondition(
-				BinaryCondition.iLike(ts.getDBColumn(BasicVariantColumns.JANNOVAR_SYMBOL), geneSymbol + "%"));
-			
-			/* Ensure that the patient actually has this variant, and is not
-			 * homozygous for the reference. This is important if reference 
-			 * positions are reported, which happens in a pgx analysis. In
-			 * general, VCF files do not report homozygous ref positions. */
-			query.addCondition(
-				BinaryCondition.notiLike(ts.getDBColumn(BasicVariantColumns.GT), "0%0"));
+		for (PGXGene pg : novelVariantsPendingGenes) {
+			assignNovelVariants(pg, variants);
 			
-			/* Add all default novel Conditions to this query. */
-			for (Condition c : novelPGXConditions) {
-				query.addCondition(c);
+			for (PGXAnalysisListener listener : settings.getAnalysisListeners()) {
+				listener.novelVariantsAnalyzed(dnaID, pg);
 			}
-			
-			/* Once query is built, run it on the remote server. */
-			List<Variant> potentialNovelVariants= runRemoteQuery(query);
-			
-			/* Check if returned variants are NOT PGx markers and then add to
-			 * the novel variants. */
-			for (Variant var : potentialNovelVariants) {
-				if (!isKnownPGXMarker(var.getChromosome(), Long.toString(var.getStart()))) {	
-					pg.addNovelVariant(var);
-				}
+		}
+		novelVariantsPendingGenes.clear();
+	}
+	
+	
+	/**
+	 * Assign a gene the novel variants that belong to it.
+	 * @param pg the PGXGene
+	 * @param variants the novel variants for all genes
+	 */
+	private void assignNovelVariants(PGXGene pg, List<Variant> variants) {
+		List<Variant> geneNovelVariants= new ArrayList<Variant>();
+		for (Variant var : variants) {
+			if (isNovelVariant(var, pg)) {
+				geneNovelVariants.add(var);
 			}
 		}
+		
+		pg.setNovelVariants(geneNovelVariants);
 	}
 	
 	
 	/**
-	 * Get diplotypes for all the PGx genes.
+	 * Get the novel variants for this individual, waiting for the novel
+	 * variant query the first time. If the query fails, the exception is
+	 * kept to be rethrown once the known variants have been retrieved.
+	 * @return the novel variants; null if the analysis was stopped before
+	 *	all of them were retrieved, or if the query failed
 	 */
-	private void getDiplotypes() {
-		/* If analysis has been cancelled, stop. */
-		if (isCancelled) {
-			return;
+	private List<Variant> getNovelVariants() {
+		if (isNovelVariantsWaitDone) {
+			return novelVariants;
 		}
 		
-		for (PGXGene pg : pgxGenes) {
-			try {
-				pg.setDiplotype(PGXDBFunctions.getDiplotype(pg));
-			} catch (Exception e) {
-				e.printStackTrace();
+		/* Only report the novel variants if all of them were retrieved. */
+		isNovelVariantsWaitDone= true;
+		try {
+			novelVariants= waitForResult(novelVariantsFuture, queryMonitor);
+		} catch (InterruptedException ie) {
+			/* Keep the interrupt status; the analysis is cancelled once the
+			 * variant queries return. */
+			Thread.currentThread().interrupt();
+		} catch (SQLException se) {
+			novelVariantsException= se;
+		} catch (RemoteException re) {
+			novelVariantsException= re;
+		} catch (SessionExpiredException see) {
+			novelVariantsException= see;
+		}
+		
+		return novelVariants;
+	}
+	
+	
+	/**
+	 * Add the variant to the novel variants of each gene it is a novel
+	 * variant of.
+	 * @param var the variant
+	 * @param genes the PGXGene objects
+	 */
+	private void addNovelVariant(Variant var, Collection<PGXGene> genes) {
+		for (PGXGene pg : genes) {
+			if (isNovelVariant(var, pg)) {
+				pg.addNovelVariant(var);
 			}
 		}
 	}
 	
 	
 	/**
-	 * Get the haplotype activity scores/phenotypes and metabolizer classes for all PGx genes.
+	 * Check if a variant is a novel variant of this gene: its gene symbol is
+	 * prefixed by this gene's symbol, matching the case-insensitive LIKE in
+	 * the novel variant query, and it is not a known PGx marker.
+	 * @param var the variant
+	 * @param pg the PGXGene
+	 * @return true if the variant is a novel variant of this gene, false otherwise
+	 */
+	private boolean isNovelVariant(Variant var, PGXGene pg) {
+		String variantGene= var.getGene() == null ? "" : var.getGene().toUpperCase();
+		return variantGene.startsWith(pg.getGene().toUpperCase()) &&
+			!isKnownPGXMarker(var.getChromosome(), Long.toString(var.getStart()));
+	}
+	
+	
+	/**
+	 * Get the variants for each gene with a separate query, run concurrently
+	 * using a thread pool bounded by the maximum number of concurrent queries
+	 * in the settings. Genes are still completed in sorted gene order. If the
+	 * analysis is stopped, only the genes completed up to that point are kept.
+	 * @param genes the PGXGene objects, in sorted gene order
 	 */
-	private void getActivities() {
-		/* If analysis has been cancelled, stop. */
-		if (isCancelled) {
+	private void queryVariantsConcurrently(Collection<PGXGene> genes)
+		throws SQLException, RemoteException, SessionExpiredException {
+		
+		if (genes.isEmpty()) {
 			return;
 		}
 		
-		for (PGXGene pg : pgxGenes) {
-			/* Set the haplotype activities. */
-			pg.setMaternalActivity(PGXDBFunctions.getActivities(pg.getGene(), pg.getMaternalHaplotype()));
-			pg.setPaternalActivity(PGXDBFunctions.getActivities(pg.getGene(), pg.getPaternalHaplotype()));
+		ExecutorService executor= Executors.newFixedThreadPool(
+			Math.min(settings.getMaxConcurrentQueries(), genes.size()));
+		try {
+			/* Submit all the queries. The pool runs at most the maximum number
+			 * of concurrent queries at the same time. */
+			List<Future<List<Variant>>> futures= new ArrayList<Future<List<Variant>>>();
+			for (PGXGene pg : genes) {
+				final Condition query= getGeneQuery(pg);
+				futures.add(executor.submit(new Callable<List<Variant>>() {
+					@Override
+					public List<Variant> call() throws Exception {
+						/* Don't start new queries once the analysis is stopped. */
+						if (shouldStop()) {
+							return null;
+						}
+						return runRemoteQuery(query);
+					}
+				}));
+			}
 			
-			/* Set the metabolizer class based on the haplotype activities. */
-			pg.setMetabolizerClass(PGXDBFunctions.getMetabolizerClass(pg.getMaternalActivity(), pg.getPaternalActivity()));
+			/* Complete the genes in query order, stopping at the first query
+			 * that did not complete. */
+			Iterator<PGXGene> geneIterator= genes.iterator();
+			for (Future<List<Variant>> f : futures) {
+				PGXGene pg= geneIterator.next();
+				try {
+					List<Variant> variants= waitForResult(f, queryMonitor);
+					if (variants == null) {
+						break;
+					}
+					completeGene(pg, variants);
+				} catch (InterruptedException ie) {
+					// the waiting thread was interrupted; treat as a cancellation
+					Thread.currentThread().interrupt();
+					cancel();
+					break;
+				}
+			}
+		} finally {
+			/* Stops any queries that are still running or waiting. */
+			executor.shutdownNow();
+		}
+	}
+	
+	
+	/**
+	 * Rethrow the exception thrown by a concurrently run remote query.
+	 * @param t the exception thrown by the query
+	 */
+	private static void rethrowQueryException(Throwable t)
+		throws SQLException, RemoteException, SessionExpiredException {
+		
+		if (t instanceof SQLException) {
+			throw (SQLException) t;
+		} else if (t instanceof RemoteException) {
+			throw (RemoteException) t;
+		} else if (t instanceof SessionExpiredException) {
+			throw (SessionExpiredException) t;
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
 		}
+		
+		throw new RuntimeException(t);
 	}
 	
 	
@@ -423,20 +1025,25 @@ public class PGXAnalysis {
 	 * @return a map of the column aliases to column names.
 	 */
 	public static Map<String, String> getDbToHumanReadableMap() {
-		Map<String, String> dbAliasToNameMap = new HashMap<String, String>();
-
 		try {
-			AnnotationFormat[] afs = ProjectController.getInstance().getCurrentAnnotationFormats();
-			for (AnnotationFormat af : afs) {
-				for (CustomField field : af.getCustomFields()) {
-					dbAliasToNameMap.put(field.getAlias(), field.getColumnName());
-				}
-			}
+			return PGXProjectMetadata.getCurrent().getColumnAliasToNameMap();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 		
-		return dbAliasToNameMap;
+		return new HashMap<String, String>();
+	}
+	
+	
+	/**
+	 * Receives Variants one at a time as they are retrieved from the server.
+	 */
+	public interface VariantConsumer {
+		/**
+		 * Consume a single Variant.
+		 * @param var the Variant
+		 */
+		void consume(Variant var);
 	}
 	
 	
@@ -458,19 +1065,63 @@ public class PGXAnalysis {
 	
 	
 	/**
-	 * Get a list of all PGX markers.
+	 * Check if the analysis ran out of time before completing.
+	 * @return true if the time budget ran out, false otherwise
 	 */
-	private static List<PGXMarker> getListOfAllMarkers() {
-		List<PGXMarker> output= new LinkedList<PGXMarker>();
-		try {
-			for (String gene : PGXDBFunctions.getGenes()) {
-				output.addAll(PGXDBFunctions.getMarkerInfo(gene));
-			}
-		} catch (Exception e) {
-			e.printStackTrace();
+	public boolean isTimedOut() {
+		return this.isTimedOut;
+	}
+	
+	
+	/**
+	 * Check if the analysis completed, rather than being cancelled or 
+	 * running out of time. Incomplete analyses only report the genes whose
+	 * variants were all retrieved.
+	 * @return true if the analysis completed, false otherwise
+	 */
+	public boolean isComplete() {
+		return this.isComplete;
+	}
+	
+	
+	/**
+	 * Check if the analysis should stop, because it has been cancelled or
+	 * its time budget has run out.
+	 * @return true if the analysis should stop, false otherwise
+	 */
+	private boolean shouldStop() {
+		if (!isTimedOut && deadline != NO_DEADLINE && System.currentTimeMillis() >= deadline) {
+			isTimedOut= true;
 		}
 		
-		return output;
+		return isCancelled || isTimedOut;
+	}
+	
+	
+	/**
+	 * Get the time by which an analysis with these settings must finish.
+	 * @param settings the analysis settings
+	 * @return the deadline in milliseconds since the epoch; NO_DEADLINE if
+	 *	the analysis has no time budget
+	 */
+	static long getDeadline(PGXAnalysisSettings settings) {
+		if (settings.getTimeBudgetMillis() == PGXAnalysisSettings.NO_TIME_BUDGET) {
+			return NO_DEADLINE;
+		}
+		
+		return System.currentTimeMillis() + settings.getTimeBudgetMillis();
+	}
+	
+	
+	/**
+	 * Checked while a remote query runs to see if it should stop.
+	 */
+	interface QueryMonitor {
+		/**
+		 * Check if the query should stop.
+		 * @return true if the query should stop, false otherwise
+		 */
+		boolean isStopped();
 	}
 	
 	
@@ -480,20 +1131,20 @@ public class PGXAnalysis {
 	 * @param position the position stored as a string
 	 * @return true if PGx marker at this position exists, false otherwise.
 	 */
-	private boolean isKnownPGXMarker(String chromosome, String position)
-		throws PGXException, SQLException {
-		
-		boolean pgxMarkerExists= false;
-		
-		int i= 0;
-		while (i != listOfAllMarkers.size() && !pgxMarkerExists) {
-			PGXMarker currentMarker= listOfAllMarkers.get(i);
-			if (currentMarker.chromosome.equals(chromosome) && currentMarker.position.equals(position)) {
-				pgxMarkerExists= true;
-			}
-			++i;
-		}
-		
-		return pgxMarkerExists;
+	private boolean isKnownPGXMarker(String chromosome, String position) {
+		return markerCoordinateToGenes.containsKey(PGXKnowledgeBase.getCoordinateKey(chromosome, position));
+	}
+	
+	
+	/**
+	 * Returns true if the variant is at a marker position for this gene.
+	 * @param var the variant
+	 * @param gene the gene symbol
+	 * @return true if the variant is at a marker position for this gene, false otherwise
+	 */
+	private boolean isPGXMarkerForGene(Variant var, String gene) {
+		List<String> genes= markerCoordinateToGenes.get(
+			PGXKnowledgeBase.getCoordinateKey(var.getChromosome(), Long.toString(var.getStart())));
+		return genes != null && genes.contains(gene);
 	}
 }
@@ -0,0 +1,40 @@
+package pgx;
+
+/**
+ * Receives the results of a PGx analysis one gene at a time, as soon as
+ * each gene has been analyzed, rather than only once the whole analysis is
+ * complete. Register listeners with {@link PGXAnalysisSettings}.
+ * 
+ * Listeners are notified on the thread running the analysis, so any UI
+ * updates must be passed on to the event dispatch thread.
+ */
+public interface PGXAnalysisListener {
+	
+	/**
+	 * Called once the analysis has taken the project metadata it retrieves
+	 * the variants with, before any gene is reported.
+	 * @param dnaID the DNA ID for the individual being analyzed
+	 * @param metadata the project metadata used by this analysis
+	 */
+	void analysisStarted(String dnaID, PGXProjectMetadata metadata);
+	
+	
+	/**
+	 * Called once a gene's variants, diplotype, haplotype activities and
+	 * metabolizer class have all been assigned. Genes are not held back for
+	 * the novel variant query; if it has not finished yet, the gene's novel
+	 * variants are pending and are reported with novelVariantsAnalyzed.
+	 * @param dnaID the DNA ID for the individual being analyzed
+	 * @param pg the analyzed gene
+	 */
+	void geneAnalyzed(String dnaID, PGXGene pg);
+	
+	
+	/**
+	 * Called once the novel variants of a gene that was reported while they
+	 * were pending have been assigned.
+	 * @param dnaID the DNA ID for the individual being analyzed
+	 * @param pg the analyzed gene
+	 */
+	void novelVariantsAnalyzed(String dnaID, PGXGene pg);
+}
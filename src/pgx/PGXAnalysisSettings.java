@@ -0,0 +1,155 @@
+package pgx;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options controlling how a PGx analysis retrieves variants from the
+ * MedSavant server. Defaults reproduce the original per-gene behaviour.
+ */
+public class PGXAnalysisSettings {
+
+	/**
+	 * Strategies for retrieving the PGx variants from the remote server.
+	 */
+	public enum QueryMode {
+		/** One remote query per gene, run one after another. */
+		PER_GENE,
+		/** A single remote query covering all genes. Variants are assigned
+		 * to genes locally using the marker coordinates. */
+		SINGLE_QUERY,
+		/** One remote query per gene, run concurrently on a bounded thread
+		 * pool. Results are still reported in sorted gene order. */
+		CONCURRENT
+	}
+
+	/* The default maximum number of remote queries run at the same time in
+	 * CONCURRENT mode. */
+	public static final int DEFAULT_MAX_CONCURRENT_QUERIES= 4;
+	/* Analyses may run for as long as they need. */
+	public static final long NO_TIME_BUDGET= 0;
+
+	private QueryMode queryMode= QueryMode.PER_GENE;
+	private int maxConcurrentQueries= DEFAULT_MAX_CONCURRENT_QUERIES;
+	private long timeBudgetMillis= NO_TIME_BUDGET;
+	private boolean isVariantCacheEnabled= false;
+	private List<PGXAnalysisListener> analysisListeners= new ArrayList<PGXAnalysisListener>();
+
+
+	/**
+	 * Create the default analysis settings.
+	 */
+	public PGXAnalysisSettings() {
+	}
+
+
+	/**
+	 * Get the query mode.
+	 * @return the QueryMode used to retrieve variants
+	 */
+	public QueryMode getQueryMode() {
+		return this.queryMode;
+	}
+
+
+	/**
+	 * Set the query mode.
+	 * @param queryMode the QueryMode used to retrieve variants
+	 */
+	public void setQueryMode(QueryMode queryMode) {
+		this.queryMode= queryMode;
+	}
+
+
+	/**
+	 * Get the maximum number of remote queries run at the same time in
+	 * CONCURRENT mode.
+	 * @return the maximum number of concurrent queries
+	 */
+	public int getMaxConcurrentQueries() {
+		return this.maxConcurrentQueries;
+	}
+
+
+	/**
+	 * Set the maximum number of remote queries run at the same time in
+	 * CONCURRENT mode.
+	 * @param maxConcurrentQueries the maximum number of concurrent queries; must be at least 1
+	 */
+	public void setMaxConcurrentQueries(int maxConcurrentQueries) {
+		if (maxConcurrentQueries < 1) {
+			throw new IllegalArgumentException("The maximum number of concurrent queries must be at least 1.");
+		}
+		this.maxConcurrentQueries= maxConcurrentQueries;
+	}
+
+
+	/**
+	 * Get the time an analysis may spend retrieving variants before it
+	 * stops and reports the genes completed so far.
+	 * @return the time budget in milliseconds; NO_TIME_BUDGET if unlimited
+	 */
+	public long getTimeBudgetMillis() {
+		return this.timeBudgetMillis;
+	}
+
+
+	/**
+	 * Set the time an analysis may spend retrieving variants before it
+	 * stops and reports the genes completed so far.
+	 * @param timeBudgetMillis the time budget in milliseconds; NO_TIME_BUDGET if unlimited
+	 */
+	public void setTimeBudgetMillis(long timeBudgetMillis) {
+		if (timeBudgetMillis < 0) {
+			throw new IllegalArgumentException("The time budget cannot be negative.");
+		}
+		this.timeBudgetMillis= timeBudgetMillis;
+	}
+
+
+	/**
+	 * Check if variants retrieved by earlier analyses are reused from the
+	 * local {@link PGXVariantCache}.
+	 * @return true if the variant cache is used, false otherwise
+	 */
+	public boolean isVariantCacheEnabled() {
+		return this.isVariantCacheEnabled;
+	}
+
+
+	/**
+	 * Set whether variants retrieved by earlier analyses are reused from the
+	 * local {@link PGXVariantCache}.
+	 * @param isVariantCacheEnabled true to use the variant cache
+	 */
+	public void setVariantCacheEnabled(boolean isVariantCacheEnabled) {
+		this.isVariantCacheEnabled= isVariantCacheEnabled;
+	}
+
+
+	/**
+	 * Register a listener to be notified as each gene is analyzed.
+	 * @param listener the PGXAnalysisListener
+	 */
+	public void addAnalysisListener(PGXAnalysisListener listener) {
+		this.analysisListeners.add(listener);
+	}
+
+
+	/**
+	 * Remove a previously registered listener.
+	 * @param listener the PGXAnalysisListener
+	 */
+	public void removeAnalysisListener(PGXAnalysisListener listener) {
+		this.analysisListeners.remove(listener);
+	}
+
+
+	/**
+	 * Get the listeners notified as each gene is analyzed.
+	 * @return the List of PGXAnalysisListeners
+	 */
+	public List<PGXAnalysisListener> getAnalysisListeners() {
+		return this.analysisListeners;
+	}
+}
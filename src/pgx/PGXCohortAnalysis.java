@@ -0,0 +1,256 @@
+package pgx;
+
+import com.healthmarketscience.sqlbuilder.ComboCondition;
+import com.healthmarketscience.sqlbuilder.Condition;
+import com.healthmarketscience.sqlbuilder.InCondition;
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.ut.biolab.medsavant.shared.appdevapi.Variant;
+import org.ut.biolab.medsavant.shared.format.BasicVariantColumns;
+import org.ut.biolab.medsavant.shared.model.SessionExpiredException;
+
+/**
+ * Performs a pharmacogenomic analysis for many individuals at once.
+ *
+ * Rather than querying the variants of each individual separately, the
+ * individuals are split into batches and each batch is retrieved with a
+ * single query for the known PGx markers and a single query for the novel
+ * variants, using DNA_ID IN (batch). The rows are then split by DNA ID and
+ * each individual is analyzed locally, producing the same results as a
+ * {@link PGXAnalysis} for that individual.
+ *
+ * The time budget in the settings applies to the whole cohort. It is
+ * checked before each batch and while each page of variants is retrieved;
+ * individuals whose batch was not fully retrieved are not analyzed.
+ *
+ * Constructing a cohort analysis does not query anything; the work is done
+ * by {@link #analyze()}, which may be cancelled from another thread with
+ * {@link #cancel()} while it runs.
+ */
+public class PGXCohortAnalysis {
+
+	/* The default number of individuals retrieved in a single query. */
+	public static final int DEFAULT_BATCH_SIZE= 50;
+
+	private List<String> dnaIDs;
+	private PGXAnalysisSettings settings;
+	private int batchSize;
+	private PGXProjectMetadata metadata;
+	private final Map<String, PGXAnalysis> analyses= new LinkedHashMap<String, PGXAnalysis>();
+	private volatile boolean isCancelled= false;
+	private volatile boolean isTimedOut= false;
+	private volatile long deadline= PGXAnalysis.NO_DEADLINE;
+	private final PGXAnalysis.QueryMonitor queryMonitor= new PGXAnalysis.QueryMonitor() {
+		@Override
+		public boolean isStopped() {
+			return shouldStop();
+		}
+	};
+
+
+	/**
+	 * Create a pharmacogenomic analysis for all the individuals.
+	 * @param dnaIDs the DNA IDs for the individuals
+	 */
+	public PGXCohortAnalysis(List<String> dnaIDs) {
+		this(dnaIDs, new PGXAnalysisSettings(), DEFAULT_BATCH_SIZE);
+	}
+
+
+	/**
+	 * Create a pharmacogenomic analysis for all the individuals.
+	 * @param dnaIDs the DNA IDs for the individuals
+	 * @param settings the settings used for each individual's analysis
+	 * @param batchSize the maximum number of individuals retrieved in a single query; must be at least 1
+	 */
+	public PGXCohortAnalysis(List<String> dnaIDs, PGXAnalysisSettings settings, int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("The batch size must be at least 1.");
+		}
+
+		this.dnaIDs= dnaIDs;
+		this.settings= settings;
+		this.batchSize= batchSize;
+	}
+
+
+	/**
+	 * Perform the pharmacogenomic analysis for all the individuals. Returns
+	 * early, keeping the individuals already analyzed, if the analysis is
+	 * cancelled or runs out of time.
+	 */
+	public void analyze() throws SQLException, RemoteException, SessionExpiredException, PGXException {
+		this.deadline= PGXAnalysis.getDeadline(settings);
+
+		PGXAnalysis.initializeStaticState();
+		this.metadata= PGXProjectMetadata.getCurrent();
+
+		/* Analyze the individuals one batch at a time. */
+		for (int start= 0; start < dnaIDs.size(); start += batchSize) {
+			/* If analysis has been cancelled or is out of time, stop. */
+			if (shouldStop()) {
+				break;
+			}
+
+			analyzeBatch(dnaIDs.subList(start, Math.min(start + batchSize, dnaIDs.size())));
+		}
+	}
+
+
+	/**
+	 * Retrieve the variants for a batch of individuals and analyze each one.
+	 * @param batch the DNA IDs for this batch
+	 */
+	private void analyzeBatch(List<String> batch)
+		throws SQLException, RemoteException, SessionExpiredException, PGXException {
+
+		Map<String, List<Variant>> knownVariants= retrieveVariants(batch, metadata.getAllMarkersCondition());
+		if (knownVariants == null) {
+			return;
+		}
+
+		Map<String, List<Variant>> novelVariants= retrieveVariants(batch, metadata.getNovelVariantCondition());
+		if (novelVariants == null) {
+			return;
+		}
+
+		for (String dnaID : batch) {
+			PGXAnalysis analysis= new PGXAnalysis(dnaID, settings, metadata,
+				knownVariants.get(dnaID), novelVariants.get(dnaID));
+			synchronized (analyses) {
+				analyses.put(dnaID, analysis);
+			}
+		}
+	}
+
+
+	/**
+	 * Retrieve the variants for all individuals in the batch matching this
+	 * condition, split by DNA ID.
+	 * @param batch the DNA IDs for this batch
+	 * @param condition the condition, not restricted to any DNA ID
+	 * @return a Map of the Variants keyed by DNA ID, with an entry for every
+	 *	DNA ID in the batch; null if the analysis was stopped before all the
+	 *	variants were retrieved
+	 */
+	private Map<String, List<Variant>> retrieveVariants(List<String> batch, Condition condition)
+		throws SQLException, RemoteException, SessionExpiredException {
+
+		final Map<String, List<Variant>> output= new HashMap<String, List<Variant>>();
+		for (String dnaID : batch) {
+			output.put(dnaID, new LinkedList<Variant>());
+		}
+
+		ComboCondition query= new ComboCondition(ComboCondition.Op.AND);
+		query.addCondition(new InCondition(metadata.getTableSchema().getDBColumn(BasicVariantColumns.DNA_ID), batch));
+		query.addCondition(condition);
+
+		boolean isQueryComplete;
+		try {
+			isQueryComplete= PGXAnalysis.streamVariants(metadata, query, new PGXAnalysis.VariantConsumer() {
+				@Override
+				public void consume(Variant var) {
+					List<Variant> variants= output.get(var.getDNAID());
+					if (variants != null) {
+						variants.add(var);
+					}
+				}
+			}, queryMonitor, null);
+		} catch (InterruptedException ie) {
+			// the waiting thread was interrupted; treat as a cancellation
+			Thread.currentThread().interrupt();
+			cancel();
+			isQueryComplete= false;
+		}
+
+		return isQueryComplete ? output : null;
+	}
+
+
+	/**
+	 * Get the analyses for all the individuals analyzed so far.
+	 * @return a Map of the PGXAnalysis objects keyed by DNA ID, in the order
+	 *	the DNA IDs were specified; a copy, so it is safe to call while
+	 *	{@link #analyze()} is running
+	 */
+	public Map<String, PGXAnalysis> getAnalyses() {
+		synchronized (analyses) {
+			return new LinkedHashMap<String, PGXAnalysis>(analyses);
+		}
+	}
+
+
+	/**
+	 * Get the analysis for a single individual.
+	 * @param dnaID the DNA ID for this individual
+	 * @return the PGXAnalysis for this individual; null if it was not analyzed
+	 */
+	public PGXAnalysis getAnalysis(String dnaID) {
+		synchronized (analyses) {
+			return analyses.get(dnaID);
+		}
+	}
+
+
+	/**
+	 * Get the DNA IDs for all the individuals in this cohort.
+	 * @return the List of DNA IDs
+	 */
+	public List<String> getDNAIDs() {
+		return dnaIDs;
+	}
+
+
+	/**
+	 * Get the maximum number of individuals retrieved in a single query.
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+
+	/**
+	 * Cancel this cohort analysis.
+	 */
+	public void cancel() {
+		this.isCancelled= true;
+	}
+
+
+	/**
+	 * Check cancellation status
+	 * @return true if cancelled, false otherwise
+	 */
+	public boolean isCancelled() {
+		return this.isCancelled;
+	}
+
+
+	/**
+	 * Check if the cohort analysis ran out of time before completing.
+	 * @return true if the time budget ran out, false otherwise
+	 */
+	public boolean isTimedOut() {
+		return this.isTimedOut;
+	}
+
+
+	/**
+	 * Check if the cohort analysis should stop, because it has been
+	 * cancelled or its time budget has run out.
+	 * @return true if the analysis should stop, false otherwise
+	 */
+	private boolean shouldStop() {
+		if (!isTimedOut && deadline != PGXAnalysis.NO_DEADLINE && System.currentTimeMillis() >= deadline) {
+			isTimedOut= true;
+		}
+
+		return isCancelled || isTimedOut;
+	}
+}
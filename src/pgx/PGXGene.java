@@ -22,8 +22,12 @@ public class PGXGene {
 	private String maternalActivity;
 	private String paternalActivity;
 	private boolean isPhased= true; // default is phased
+	private List<String> diplotypeCandidates= new LinkedList<String>();
 	private String metabolizerClass;
-	private List<Variant> novelVariants;
+	/* Assigned by the analysis thread after the gene may already have been
+	 * reported, so they are volatile. */
+	private volatile List<Variant> novelVariants;
+	private volatile boolean isNovelVariantsPending= false;
 	
 	
 	/**
@@ -183,6 +187,25 @@ public class PGXGene {
 	}
 	
 	
+	/**
+	 * Set the diplotypes consistent with this gene's unphased genotypes.
+	 * @param diplotypes the ranked List of diplotype Strings
+	 */
+	public void setDiplotypeCandidates(List<String> diplotypes) {
+		this.diplotypeCandidates= diplotypes;
+	}
+	
+	
+	/**
+	 * Get the diplotypes consistent with this gene's unphased genotypes.
+	 * @return the ranked List of diplotype Strings; empty if the genotypes
+	 *	are phased or no diplotype is consistent with them
+	 */
+	public List<String> getDiplotypeCandidates() {
+		return this.diplotypeCandidates;
+	}
+	
+	
 	/**
 	 * Set maternal activity.
 	 * @param activity the activity string
@@ -253,4 +276,33 @@ public class PGXGene {
 	public void addNovelVariant(Variant novelVar) {
 		novelVariants.add(novelVar);
 	}
+	
+	
+	/**
+	 * Replace the list of novel Variants, for example once they have been
+	 * retrieved after the gene was reported. The list is not modified
+	 * afterwards, so it can be read while the gene is being displayed.
+	 * @param novelVariants the list of novel Variants
+	 */
+	public void setNovelVariants(List<Variant> novelVariants) {
+		this.novelVariants= novelVariants;
+		this.isNovelVariantsPending= false;
+	}
+	
+	
+	/**
+	 * Mark this gene's novel variants as not retrieved yet.
+	 */
+	public void setNovelVariantsPending() {
+		this.isNovelVariantsPending= true;
+	}
+	
+	
+	/**
+	 * Find out if this gene's novel variants have not been retrieved yet.
+	 * @return true if the novel variants are pending, false otherwise
+	 */
+	public boolean isNovelVariantsPending() {
+		return this.isNovelVariantsPending;
+	}
 }
\ No newline at end of file
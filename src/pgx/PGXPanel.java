@@ -25,7 +25,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
@@ -38,27 +37,25 @@ import javax.swing.JTabbedPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ScrollPaneConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import net.miginfocom.swing.MigLayout;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.ut.biolab.medsavant.MedSavantClient;
-import org.ut.biolab.medsavant.client.project.ProjectController;
 import org.ut.biolab.medsavant.client.util.ClientMiscUtils;
 import org.ut.biolab.medsavant.client.util.MedSavantWorker;
 import org.ut.biolab.medsavant.client.view.MedSavantFrame;
 import org.ut.biolab.medsavant.client.view.component.ProgressWheel;
 import org.ut.biolab.medsavant.client.view.dialog.IndividualSelector;
-import org.ut.biolab.medsavant.client.view.login.LoginController;
 import org.ut.biolab.medsavant.client.view.util.DialogUtils;
 import org.ut.biolab.medsavant.client.view.util.ViewUtil;
 import org.ut.biolab.medsavant.shared.appdevapi.AppColors;
 import org.ut.biolab.medsavant.shared.appdevapi.DBAnnotationColumns;
 import org.ut.biolab.medsavant.shared.appdevapi.Variant;
-import org.ut.biolab.medsavant.shared.db.TableSchema;
 import org.ut.biolab.medsavant.shared.format.CustomField;
 import org.ut.biolab.medsavant.shared.model.SessionExpiredException;
-import org.ut.biolab.medsavant.shared.serverapi.AnnotationManagerAdapter;
 import pgx.localDB.PGXDBFunctions;
 import pgx.localDB.PGXDBFunctions.PGXMarker;
 
@@ -79,10 +76,6 @@ public class PGXPanel {
 	private static final String CANCEL_TEXT= "Cancel";
 	private static final String REFRESH_TEXT= "Refresh";
 	
-	private static List<String> afColumnNames;
-	
-	private CountDownLatch cancelLatch= new CountDownLatch(1);
-	
 	/* Patient information. */
 	private String currentHospitalID;
 	private String currentDNAID;
@@ -104,6 +97,18 @@ public class PGXPanel {
 	private JButton exportToPDFButton;
 	private JTabbedPane tabs;
 	private JButton exportToTextButton;
+	private JPanel summaryJP;
+	
+	/* Genes added to the report so far, in sorted gene order. */
+	private List<PGXGene> reportedGenes;
+	/* Whether the report only has the genes analyzed before a cancellation. */
+	private boolean isReportPartial;
+	/* The allele frequency fields of the project metadata used by the
+	 * analysis being reported. */
+	private List<CustomField> reportAlleleFrequencyFields= Collections.emptyList();
+	/* Identifies the latest analysis, so that results from a previous,
+	 * cancelled analysis are not added to the report. */
+	private int currentAnalysisNumber= 0;
 	
 	
 	public PGXPanel() {
@@ -215,52 +220,27 @@ public class PGXPanel {
 				
 				if (!pgxAnalysisThread.isDone()) { // cancel action
 				
-				/* If the cancel button is pressed immediately after the analysis
-				 * is started, the analysis is null, and we need to wait for it to
-				 * be initialized before cancelling it. This is done via a CountDownLatch.
-				 * However, the latch is locking, so the swing (UI) thread will
-				 * wait until the analysis is initialized before executing the
-				 * cancel() method. Instead, we'll submit the cancellation request
-				 * via a separate cancellation thread, which will wait for the 
-				 * analysis to be initialized. */
-					MedSavantWorker cancellationThread= new MedSavantWorker<Object>(PGXPanel.class.getCanonicalName()) {			
-						@Override
-						protected Object doInBackground() throws SQLException, RemoteException,
-							SessionExpiredException, PGXException {
-
-								// Intermediate UI updates to show that analysis is being cancelled
-								status.setText("Cancelling...");
-								cancelOrRefresh.setEnabled(false);
-							
-								// Cancel the analysis thread
-								pgxAnalysisThread.cancel(true);
-
-								// Cancel the analysis, once it's been initialized - check
-								// the CountDownLatch first.
-								try {
-									cancelLatch.await();
-									currentPGXAnalysis.cancel();
-								} catch (InterruptedException ie) {
-									errorDialog(ie.getMessage());
-									ie.printStackTrace();
-								}
-								
-							return null;
-						}
-
-						@Override protected void showSuccess(Object t) {
-							// UI cancellation details
-							cancelReportPanel();
-							cancelOrRefresh.setEnabled(true);
-							cancelOrRefresh.setText(REFRESH_TEXT);
-							status.setText("Analysis cancelled.");
-							statusWheel.setVisible(false);
-							choosePatientButton.setEnabled(true);
-						}
-					};
-		
-					// Execute thread
-					cancellationThread.execute();
+				/* Interrupt the analysis thread. The analysis checks for the
+				 * interruption while it waits for each page of variants and
+				 * treats it as a cancellation, so the analysis stops within a
+				 * page without having to wait for it to be initialized. */
+					pgxAnalysisThread.cancel(true);
+					
+					// Ignore any genes the cancelled analysis still reports
+					++currentAnalysisNumber;
+					
+					// UI cancellation details; keep the genes already reported
+					if (reportedGenes == null) {
+						cancelReportPanel();
+						status.setText("Analysis cancelled.");
+					} else {
+						isReportPartial= true;
+						updateSummaryPanel();
+						status.setText("Analysis cancelled; showing partial results.");
+					}
+					cancelOrRefresh.setText(REFRESH_TEXT);
+					statusWheel.setVisible(false);
+					choosePatientButton.setEnabled(true);
 					
 				} else { // refresh action
 					analyzePatient();
@@ -535,6 +515,59 @@ public class PGXPanel {
 		
 		// Clear the report panel to avoid confusing this patient for the previous one
 		analysisRunningReportPanel();
+		reportedGenes= null;
+		
+		/* Add each gene to the report as soon as it has been analyzed. The
+		 * analysis notifies listeners on its own thread, so the report is
+		 * updated on the event dispatch thread. */
+		final int analysisNumber= ++currentAnalysisNumber;
+		final PGXAnalysisSettings settings= getAnalysisSettings();
+		settings.addAnalysisListener(new PGXAnalysisListener() {
+			@Override
+			public void analysisStarted(String dnaID, final PGXProjectMetadata metadata) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if (analysisNumber != currentAnalysisNumber) {
+							return;
+						}
+						
+						reportAlleleFrequencyFields= metadata.getAlleleFrequencyFields();
+					}
+				});
+			}
+			
+			@Override
+			public void geneAnalyzed(String dnaID, final PGXGene pg) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if (analysisNumber != currentAnalysisNumber) {
+							return;
+						}
+						
+						if (reportedGenes == null) {
+							startReportPane();
+						}
+						addGeneToReport(pg);
+					}
+				});
+			}
+			
+			@Override
+			public void novelVariantsAnalyzed(String dnaID, final PGXGene pg) {
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if (analysisNumber != currentAnalysisNumber) {
+							return;
+						}
+						
+						updateGeneInReport(pg);
+					}
+				});
+			}
+		});
 		
 		/* Background task. */
 		pgxAnalysisThread= new MedSavantWorker<Object>(PGXPanel.class.getCanonicalName()) {			
@@ -542,12 +575,10 @@ public class PGXPanel {
 			protected Object doInBackground() throws SQLException, RemoteException,
 				SessionExpiredException, PGXException {
 				
-				/* Create and perform a new analysis. Uses a CountDownLatch to 
-				 * ensure that currentPGXAnalysis is initilized before I can
-				 * do anything with it (for example, cancel it). */
+				/* Create and perform a new analysis. The analysis is cancelled
+				 * by interrupting this thread. */
 				try {
-					currentPGXAnalysis= new PGXAnalysis(currentDNAID);
-					cancelLatch.countDown();
+					currentPGXAnalysis= new PGXAnalysis(currentDNAID, settings);
 				} catch (Exception e) {
 					errorDialog(e.getMessage());
 					e.printStackTrace();
@@ -558,15 +589,22 @@ public class PGXPanel {
 
 			@Override
 			protected void showSuccess(Object t) {
-				status.setText("Analysis complete.");
+				if (currentPGXAnalysis != null && currentPGXAnalysis.isTimedOut()) {
+					status.setText("Analysis ran out of time; showing partial results.");
+				} else {
+					status.setText("Analysis complete.");
+				}
 				statusWheel.setVisible(false);
 				choosePatientButton.setEnabled(true);
 				cancelOrRefresh.setText(REFRESH_TEXT);
 				exportToPDFButton.setVisible(true);
 				exportToTextButton.setVisible(true);
 				
-				/* Update the report pane. */
-				updateReportPane();
+				/* Genes have been added to the report as they were analyzed;
+				 * only start the report here if no genes were analyzed. */
+				if (reportedGenes == null) {
+					startReportPane();
+				}
 			}
 		};
 		
@@ -576,125 +614,209 @@ public class PGXPanel {
 	
 	
 	/**
-	 * Update the report panel.
+	 * Get the settings used for analyses run from this panel.
+	 * @return the PGx analysis settings
+	 */
+	private PGXAnalysisSettings getAnalysisSettings() {
+		PGXAnalysisSettings settings= new PGXAnalysisSettings();
+		
+		/* Retrieve all the PGx markers in a single query to minimize the
+		 * number of round trips to the server. */
+		settings.setQueryMode(PGXAnalysisSettings.QueryMode.SINGLE_QUERY);
+		
+		/* Reuse the variants retrieved when this patient was last analyzed,
+		 * since users frequently switch back and forth between patients. */
+		settings.setVariantCacheEnabled(true);
+		
+		return settings;
+	}
+	
+	
+	/**
+	 * Start a new report panel with an empty summary tab. Genes are added to
+	 * the report as they are analyzed.
 	 */
-	private void updateReportPane() {
+	private void startReportPane() {
 		tabs= ViewUtil.getMSTabedPane();
+		reportedGenes= new ArrayList<PGXGene>();
+		isReportPartial= false;
 		
 		/* Create a summary tab. */
-		JPanel summary= new JPanel();
-		summary.setBackground(Color.WHITE);
-		summary.setLayout(new MigLayout("gapx 30px"));
-		summary.add(createLabel("Patient Hospital ID", true, 20));
-		summary.add(createLabel(this.currentHospitalID, false, 20), "wrap");
-		summary.add(createLabel("Patient DNA ID", true, 20));
-		summary.add(createLabel(this.currentDNAID, false, 20), "wrap");
-		summary.add(createLabel("Gene", true, 20), "gapy 20px");
-		summary.add(createLabel("Diplotype", true, 20));
-		summary.add(createLabel("Therapeutic class", true, 20), "wrap");
-		for (PGXGene pg : currentPGXAnalysis.getGenes()) {
-			summary.add(createLabel(pg.getGene(), false, 20));
-			summary.add(createLabel(pg.getDiplotype(), false, 20));
-			summary.add(createLabel(pg.getMetabolizerClass(), false, 20), "wrap");
+		summaryJP= new JPanel();
+		summaryJP.setBackground(Color.WHITE);
+		summaryJP.setLayout(new MigLayout("gapx 30px"));
+		updateSummaryPanel();
+		tabs.addTab("Summary", summaryJP);
+		
+		reportPane.setViewportView(tabs);
+	}
+	
+	
+	/**
+	 * Update the summary tab with all the genes reported so far.
+	 */
+	private void updateSummaryPanel() {
+		summaryJP.removeAll();
+		
+		summaryJP.add(createLabel("Patient Hospital ID", true, 20));
+		summaryJP.add(createLabel(this.currentHospitalID, false, 20), "wrap");
+		summaryJP.add(createLabel("Patient DNA ID", true, 20));
+		summaryJP.add(createLabel(this.currentDNAID, false, 20), "wrap");
+		if (isReportPartial) {
+			summaryJP.add(createLabel("Analysis cancelled; only the genes below were analyzed.",
+				false, 20), "gapy 20px, span");
 		}
-		tabs.addTab("Summary", summary);
-
-		/* For each PGx gene, create a separate tab. */
-		for (PGXGene pg : currentPGXAnalysis.getGenes()) {
-			JPanel reportJP= new JPanel();
-			reportJP.setBackground(Color.WHITE);
-			reportJP.setLayout(new MigLayout("gapx 30px"));
-			
-			reportJP.add(createLabel("Gene", true, 22));
-			reportJP.add(createLabel(pg.getGene(), false, 22), "wrap");
-			
-			reportJP.add(createLabel("Diplotype", true, 22));
-			reportJP.add(createLabel(pg.getDiplotype(), false, 22), "wrap");
-			
-			reportJP.add(createLabel("Therapeutic class", true, 22));
-			reportJP.add(createLabel(pg.getMetabolizerClass(), false, 22), "gapafter 30px, wrap");
-			
-			/* Add pubmed links. */
-			reportJP.add(createLabel("Publications", true, 22), "aligny top");
-			List<String> pubmedIDs= PGXDBFunctions.getPubMedIDs(pg.getGene());
-			for (int i= 0; i != pubmedIDs.size(); ++i) {
-				String pubmedButtonText= "Guidelines";
-				if (pubmedIDs.size() > 1) {
-					pubmedButtonText += " #" + (i + 1);
-				}
-				JButton jb= getURLButton(pubmedButtonText, basePubmedUrl, pubmedIDs.get(i), true);
-				jb.setFont(new Font(jb.getFont().getName(), Font.PLAIN, 22));
-				String constraintText= "aligny top, ";
-				// Set some spacing constraints for the pubmed links
-				if (i == 0 && pubmedIDs.size() > 1) {
-					constraintText += "split"; // if there are more than 1 IDs, stick them together visually
-				} else if (i == pubmedIDs.size() - 1) {
-					constraintText += "wrap";
-				}
-				reportJP.add(jb, constraintText);
+		summaryJP.add(createLabel("Gene", true, 20), "gapy 20px");
+		summaryJP.add(createLabel("Diplotype", true, 20));
+		summaryJP.add(createLabel("Therapeutic class", true, 20), "wrap");
+		for (PGXGene pg : reportedGenes) {
+			summaryJP.add(createLabel(pg.getGene(), false, 20));
+			summaryJP.add(createLabel(pg.getDiplotype(), false, 20));
+			summaryJP.add(createLabel(pg.getMetabolizerClass(), false, 20), "wrap");
+		}
+		
+		summaryJP.revalidate();
+		summaryJP.repaint();
+	}
+	
+	
+	/**
+	 * Add an analyzed gene to the report, as a row in the summary tab and as
+	 * a separate tab. Genes are kept in sorted gene order, since they may be
+	 * analyzed out of order.
+	 * @param pg the analyzed PGXGene
+	 */
+	private void addGeneToReport(PGXGene pg) {
+		int index= 0;
+		while (index < reportedGenes.size() &&
+			reportedGenes.get(index).getGene().compareTo(pg.getGene()) < 0) {
+			++index;
+		}
+		reportedGenes.add(index, pg);
+		
+		updateSummaryPanel();
+		
+		/* Add the main report panel for this gene to the tabs, after the
+		 * summary tab. */
+		tabs.insertTab(pg.getGene(), null, createGeneReportPanel(pg), null, index + 1);
+	}
+	
+	
+	/**
+	 * Replace the tab of a gene already in the report, for example once its
+	 * novel variants have been retrieved.
+	 * @param pg the analyzed PGXGene
+	 */
+	private void updateGeneInReport(PGXGene pg) {
+		int index= reportedGenes.indexOf(pg);
+		if (index != -1) {
+			tabs.setComponentAt(index + 1, createGeneReportPanel(pg));
+		}
+	}
+	
+	
+	/**
+	 * Create the report panel for a single PGx gene.
+	 * @param pg the PGXGene
+	 * @return the report JPanel for this gene
+	 */
+	private JPanel createGeneReportPanel(PGXGene pg) {
+		JPanel reportJP= new JPanel();
+		reportJP.setBackground(Color.WHITE);
+		reportJP.setLayout(new MigLayout("gapx 30px"));
+		
+		reportJP.add(createLabel("Gene", true, 22));
+		reportJP.add(createLabel(pg.getGene(), false, 22), "wrap");
+		
+		reportJP.add(createLabel("Diplotype", true, 22));
+		reportJP.add(createLabel(pg.getDiplotype(), false, 22), "wrap");
+		
+		reportJP.add(createLabel("Therapeutic class", true, 22));
+		reportJP.add(createLabel(pg.getMetabolizerClass(), false, 22), "gapafter 30px, wrap");
+		
+		/* Add pubmed links. */
+		reportJP.add(createLabel("Publications", true, 22), "aligny top");
+		List<String> pubmedIDs= PGXDBFunctions.getPubMedIDs(pg.getGene());
+		for (int i= 0; i != pubmedIDs.size(); ++i) {
+			String pubmedButtonText= "Guidelines";
+			if (pubmedIDs.size() > 1) {
+				pubmedButtonText += " #" + (i + 1);
 			}
-			
-			/* Add genotype phase status. */
-			String phasedTextAddition= "";
-			if (!pg.isPhased())
-				phasedTextAddition= "NOT ";
-			reportJP.add(createLabel("Genotypes are " + phasedTextAddition + "phased.",
+			JButton jb= getURLButton(pubmedButtonText, basePubmedUrl, pubmedIDs.get(i), true);
+			jb.setFont(new Font(jb.getFont().getName(), Font.PLAIN, 22));
+			String constraintText= "aligny top, ";
+			// Set some spacing constraints for the pubmed links
+			if (i == 0 && pubmedIDs.size() > 1) {
+				constraintText += "split"; // if there are more than 1 IDs, stick them together visually
+			} else if (i == pubmedIDs.size() - 1) {
+				constraintText += "wrap";
+			}
+			reportJP.add(jb, constraintText);
+		}
+		
+		/* Add genotype phase status. */
+		String phasedTextAddition= "";
+		if (!pg.isPhased())
+			phasedTextAddition= "NOT ";
+		reportJP.add(createLabel("Genotypes are " + phasedTextAddition + "phased.",
+			false, 22), "span");
+		
+		/* Add the diplotypes that unphased genotypes could resolve to. */
+		if (!pg.isPhased() && pg.getDiplotypeCandidates().size() > 1) {
+			reportJP.add(createLabel("Possible diplotypes: " + StringUtils.join(pg.getDiplotypeCandidates(), ", "),
 				false, 22), "span");
-			
-			// No longer implementing the subpanels
-			/* Add a subpanel of tabs. */
-			/*
-			final JTabbedPane subtabs= ViewUtil.getMSTabedPane();
-			// span the entire panel width minus 50 pixels to make up for the gapx inset
-			subtabs.setPreferredSize(new Dimension(
-				reportPane.getSize().width - 50, subtabs.getPreferredSize().height));
-			*/
-			
-			/* Subpanel describing the individual's haplotypes/markers for this individual. */
-			JPanel geneSummaryJP= new JPanel();
-			geneSummaryJP.setBackground(Color.WHITE);
-			geneSummaryJP.setLayout(new MigLayout("gapx 20px"));
-			addHaplotypes(geneSummaryJP, pg);
-			geneSummaryJP.revalidate();
-			//subtabs.addTab(pg.getGene() + " summary", geneSummaryJP);
-			
-			/* Subpanel displaying all detected variants. */
-			JPanel hapDetailsJP= new JPanel();
-			hapDetailsJP.setBackground(Color.WHITE);
-			hapDetailsJP.setLayout(new MigLayout("gapx 15px"));
-			addHaplotypeDetails(hapDetailsJP, pg);
-			//subtabs.addTab("Haplotype details", hapDetailsJP);
-			
-			/* Subpanel describing all the markers tested for this gene. */
-			JPanel testedMarkersJP= new JPanel();
-			testedMarkersJP.setBackground(Color.WHITE);
-			testedMarkersJP.setLayout(new MigLayout("gapy 0px, gapx 30px")); // don't use fillx property here
-			addTestedMarkers(testedMarkersJP, pg);
-			//subtabs.addTab("Tested markers for " + pg.getGene(), testedMarkersJP); 
-			
-			/* Subpanel showing all the novel Variants for this gene. */
-			JPanel novelVariantsJP= getNovelVariantsPanel(pg);
-			//subtabs.addTab("Novel variants", novelVariantsJP);
-			
-			/* Add subpanels to the main report panel. */
-			reportJP.add(createLabel("Haplotype summary", true, 22,
-				reportJP.getBackground(), DEFAULT_SUBHEADING_DARK_BLUE), "gapy 40px, span");
-			reportJP.add(geneSummaryJP, "span");
-			reportJP.add(createLabel("Genotype summary ", true, 22,
-				reportJP.getBackground(), DEFAULT_SUBHEADING_DARK_BLUE), "span");
-			reportJP.add(hapDetailsJP, "span");
-			reportJP.add(createLabel("Novel variants (not part of guidelines)",
-				true, 22, reportJP.getBackground(), DEFAULT_SUBHEADING_DARK_BLUE), "span");
-			reportJP.add(novelVariantsJP, "span");			
-			
-			/* Add subtabs to the main report panel. */
-			//reportJP.add(subtabs, "gapy 100px, span"); // need span here for column formatting of diplotype and metabolizer fields			
-			
-			/* Add the main report panel for this gene to the tabs. */
-			tabs.addTab(pg.getGene(), reportJP);
 		}
 		
-		reportPane.setViewportView(tabs);
+		// No longer implementing the subpanels
+		/* Add a subpanel of tabs. */
+		/*
+		final JTabbedPane subtabs= ViewUtil.getMSTabedPane();
+		// span the entire panel width minus 50 pixels to make up for the gapx inset
+		subtabs.setPreferredSize(new Dimension(
+			reportPane.getSize().width - 50, subtabs.getPreferredSize().height));
+		*/
+		
+		/* Subpanel describing the individual's haplotypes/markers for this individual. */
+		JPanel geneSummaryJP= new JPanel();
+		geneSummaryJP.setBackground(Color.WHITE);
+		geneSummaryJP.setLayout(new MigLayout("gapx 20px"));
+		addHaplotypes(geneSummaryJP, pg);
+		geneSummaryJP.revalidate();
+		//subtabs.addTab(pg.getGene() + " summary", geneSummaryJP);
+		
+		/* Subpanel displaying all detected variants. */
+		JPanel hapDetailsJP= new JPanel();
+		hapDetailsJP.setBackground(Color.WHITE);
+		hapDetailsJP.setLayout(new MigLayout("gapx 15px"));
+		addHaplotypeDetails(hapDetailsJP, pg);
+		//subtabs.addTab("Haplotype details", hapDetailsJP);
+		
+		/* Subpanel describing all the markers tested for this gene. */
+		JPanel testedMarkersJP= new JPanel();
+		testedMarkersJP.setBackground(Color.WHITE);
+		testedMarkersJP.setLayout(new MigLayout("gapy 0px, gapx 30px")); // don't use fillx property here
+		addTestedMarkers(testedMarkersJP, pg);
+		//subtabs.addTab("Tested markers for " + pg.getGene(), testedMarkersJP); 
+		
+		/* Subpanel showing all the novel Variants for this gene. */
+		JPanel novelVariantsJP= getNovelVariantsPanel(pg);
+		//subtabs.addTab("Novel variants", novelVariantsJP);
+		
+		/* Add subpanels to the main report panel. */
+		reportJP.add(createLabel("Haplotype summary", true, 22,
+			reportJP.getBackground(), DEFAULT_SUBHEADING_DARK_BLUE), "gapy 40px, span");
+		reportJP.add(geneSummaryJP, "span");
+		reportJP.add(createLabel("Genotype summary ", true, 22,
+			reportJP.getBackground(), DEFAULT_SUBHEADING_DARK_BLUE), "span");
+		reportJP.add(hapDetailsJP, "span");
+		reportJP.add(createLabel("Novel variants (not part of guidelines)",
+			true, 22, reportJP.getBackground(), DEFAULT_SUBHEADING_DARK_BLUE), "span");
+		reportJP.add(novelVariantsJP, "span");			
+		
+		/* Add subtabs to the main report panel. */
+		//reportJP.add(subtabs, "gapy 100px, span"); // need span here for column formatting of diplotype and metabolizer fields			
+		
+		return reportJP;
 	}
 	
 	
@@ -825,26 +947,11 @@ public class PGXPanel {
 		novelVariantsJP.setBackground(Color.WHITE);
 		novelVariantsJP.setLayout(new MigLayout("fillx, gapx 15px"));
 		
-		/* Get the names of the allele frequency columns, if not done already. */
-		if (afColumnNames == null) {
-			afColumnNames= new LinkedList<String>();
-			
-			TableSchema ts= ProjectController.getInstance().getCurrentVariantTableSchema();
-			AnnotationManagerAdapter am= MedSavantClient.AnnotationManagerAdapter;
-			Map<String, Set<CustomField>> fieldMap= null;
-			try {
-				fieldMap= 
-					am.getAnnotationFieldsByTag(LoginController.getInstance().getSessionID(), true);
-			} catch (Exception e) {
-				errorDialog(e.getMessage());
-				e.printStackTrace();
-			}
-			Set<CustomField> columnNames= fieldMap.get(CustomField.ALLELE_FREQUENCY_TAG);
-			
-			for (CustomField cf : columnNames) {
-				//DbColumn afColumn= ts.getDBColumn(cf.getColumnName());
-				afColumnNames.add(cf.getAlias());
-			}
+		/* Get the names of the allele frequency columns from the project
+		 * metadata used by the analysis. */
+		List<String> afColumnNames= new LinkedList<String>();
+		for (CustomField cf : reportAlleleFrequencyFields) {
+			afColumnNames.add(cf.getAlias());
 		}
 		
 		/* Short message describing how these variants are selected. */
@@ -854,7 +961,9 @@ public class PGXPanel {
 			, false, FONT_SIZE), "alignx center, span");
 		
 		/* Create the table header. */
-		if (pg.getNovelVariants().size() > 0) {
+		if (pg.isNovelVariantsPending()) {
+			novelVariantsJP.add(createLabel("Novel variants have not been retrieved yet.", true, 18), "alignx center");
+		} else if (pg.getNovelVariants().size() > 0) {
 			novelVariantsJP.add(createLabel("Chrom", true, FONT_SIZE));
 			novelVariantsJP.add(createLabel("Position", true, FONT_SIZE));
 			novelVariantsJP.add(createLabel("Effect", true, FONT_SIZE));
@@ -0,0 +1,475 @@
+package pgx;
+
+import com.healthmarketscience.sqlbuilder.BinaryCondition;
+import com.healthmarketscience.sqlbuilder.ComboCondition;
+import com.healthmarketscience.sqlbuilder.Condition;
+import com.healthmarketscience.sqlbuilder.InCondition;
+import com.healthmarketscience.sqlbuilder.UnaryCondition;
+import com.healthmarketscience.sqlbuilder.dbspec.basic.DbColumn;
+import jannovar.common.VariantType;
+import java.rmi.RemoteException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.ut.biolab.medsavant.MedSavantClient;
+import org.ut.biolab.medsavant.client.project.ProjectController;
+import org.ut.biolab.medsavant.client.reference.ReferenceController;
+import org.ut.biolab.medsavant.client.view.login.LoginController;
+import org.ut.biolab.medsavant.shared.db.TableSchema;
+import org.ut.biolab.medsavant.shared.format.AnnotationFormat;
+import org.ut.biolab.medsavant.shared.format.BasicVariantColumns;
+import org.ut.biolab.medsavant.shared.format.CustomField;
+import org.ut.biolab.medsavant.shared.model.SessionExpiredException;
+import org.ut.biolab.medsavant.shared.serverapi.AnnotationManagerAdapter;
+import pgx.localDB.PGXDB;
+import pgx.localDB.PGXDBFunctions.PGXMarker;
+import pgx.localDB.PGXKnowledgeBase;
+
+/**
+ * Project metadata used by PGx analyses: the variant table schema, the
+ * annotation formats and fields, and the standard PGx query conditions.
+ * 
+ * The metadata for the current project and reference is fetched lazily the
+ * first time it is needed and shared by all analyses and the PGx panel, so
+ * loading the PGx classes does not make any remote calls and the same
+ * metadata is never fetched twice. It is rebuilt only when the user switches
+ * to a different project or reference. The query conditions are built on
+ * first use, since they also need the local PGx DB.
+ * 
+ * The metadata is tied to the version of the PGx knowledge base that was
+ * current when it was created, and analyses use that version throughout.
+ * When the knowledge base is updated, the next call to getCurrent() returns
+ * metadata for the new version, reusing the project fields and the query
+ * conditions of the genes that didn't change.
+ */
+public class PGXProjectMetadata {
+	
+	/* Marker positions on the same chromosome that are at most this many bases
+	 * apart are queried as a single position range, if the range includes at
+	 * least the minimum number of marker positions. */
+	private static final int MARKER_RANGE_MAX_GAP= 100;
+	private static final int MARKER_RANGE_MIN_POSITIONS= 3;
+	private static final List<String> NOVEL_MUTATIONS= Arrays.asList(
+		new String[] {
+		VariantType.MISSENSE.toString(), VariantType.FS_DELETION.toString(),
+		VariantType.FS_INSERTION.toString(), VariantType.FS_SUBSTITUTION.toString(),
+		VariantType.FS_DUPLICATION.toString(), VariantType.NON_FS_DELETION .toString(),
+		VariantType.NON_FS_INSERTION.toString(), VariantType.NON_FS_SUBSTITUTION.toString(),
+		VariantType.NON_FS_DUPLICATION.toString(), VariantType.SPLICING.toString(),
+		VariantType.STOPGAIN.toString(), VariantType.START_LOSS.toString()
+		});
+	
+	private static PGXProjectMetadata current;
+	
+	private final int projectID;
+	private final int referenceID;
+	private final TableSchema ts;
+	private final AnnotationFormat[] annotationFormats;
+	private final Map<String, String> columnAliasToName;
+	private final List<CustomField> alleleFrequencyFields;
+	private final PGXKnowledgeBase knowledgeBase;
+	/* The conditions already built for the previous knowledge base version,
+	 * reused for the genes unchanged since that version; empty if there are
+	 * none. Only the conditions are kept, so the previous version is not. */
+	private Map<String, Condition> previousConditions= Collections.emptyMap();
+	private long previousVersion= PGXKnowledgeBase.BASE_VERSION;
+	
+	/* Built on first use. */
+	private Map<String, Condition> standardPGXConditions;
+	private Condition allMarkersPGXCondition;
+	private Condition novelVariantPGXCondition;
+	
+	
+	/**
+	 * Fetch the metadata for this project and reference.
+	 * @param projectID the project ID
+	 * @param referenceID the reference ID
+	 * @param knowledgeBase the version of the PGx knowledge base to use
+	 */
+	private PGXProjectMetadata(int projectID, int referenceID, PGXKnowledgeBase knowledgeBase)
+		throws SQLException, RemoteException, SessionExpiredException {
+		
+		this.projectID= projectID;
+		this.referenceID= referenceID;
+		this.knowledgeBase= knowledgeBase;
+		this.ts= ProjectController.getInstance().getCurrentVariantTableSchema();
+		this.annotationFormats= ProjectController.getInstance().getCurrentAnnotationFormats();
+		
+		/* Map the column aliases to the column names. */
+		Map<String, String> dbAliasToNameMap= new HashMap<String, String>();
+		for (AnnotationFormat af : annotationFormats) {
+			for (CustomField field : af.getCustomFields()) {
+				dbAliasToNameMap.put(field.getAlias(), field.getColumnName());
+			}
+		}
+		this.columnAliasToName= Collections.unmodifiableMap(dbAliasToNameMap);
+		
+		/* Get the allele frequency columns. */
+		List<CustomField> afFields= new ArrayList<CustomField>();
+		AnnotationManagerAdapter am= MedSavantClient.AnnotationManagerAdapter;
+		Map<String, Set<CustomField>> fieldMap= 
+			am.getAnnotationFieldsByTag(LoginController.getInstance().getSessionID(), true);
+		Set<CustomField> columnNames= fieldMap.get(CustomField.ALLELE_FREQUENCY_TAG);
+		if (columnNames != null) {
+			afFields.addAll(columnNames);
+		}
+		this.alleleFrequencyFields= Collections.unmodifiableList(afFields);
+	}
+	
+	
+	/**
+	 * Reuse the project fields of this metadata with a newer version of the
+	 * PGx knowledge base.
+	 * @param previous the metadata for the previous version
+	 * @param knowledgeBase the version of the PGx knowledge base to use
+	 */
+	private PGXProjectMetadata(PGXProjectMetadata previous, PGXKnowledgeBase knowledgeBase) {
+		this.projectID= previous.projectID;
+		this.referenceID= previous.referenceID;
+		this.ts= previous.ts;
+		this.annotationFormats= previous.annotationFormats;
+		this.columnAliasToName= previous.columnAliasToName;
+		this.alleleFrequencyFields= previous.alleleFrequencyFields;
+		this.knowledgeBase= knowledgeBase;
+		
+		synchronized (previous) {
+			if (previous.standardPGXConditions != null) {
+				this.previousConditions= previous.standardPGXConditions;
+				this.previousVersion= previous.knowledgeBase.getVersion();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Get the metadata for the current project and reference, fetching it
+	 * if it hasn't been fetched yet or if the project or reference changed.
+	 * @return the PGXProjectMetadata for the current project and reference,
+	 *	and the current version of the PGx knowledge base
+	 * @precondition the local PGx DB has been initialized
+	 */
+	public static synchronized PGXProjectMetadata getCurrent()
+		throws SQLException, RemoteException, SessionExpiredException {
+		
+		int projectID= ProjectController.getInstance().getCurrentProjectID();
+		int referenceID= ReferenceController.getInstance().getCurrentReferenceID();
+		PGXKnowledgeBase kb= PGXDB.getKnowledgeBase();
+		if (current == null || current.projectID != projectID || current.referenceID != referenceID) {
+			current= new PGXProjectMetadata(projectID, referenceID, kb);
+		} else if (current.knowledgeBase != kb) {
+			current= new PGXProjectMetadata(current, kb);
+		}
+		
+		return current;
+	}
+	
+	
+	/**
+	 * Get the project ID.
+	 * @return the project ID
+	 */
+	public int getProjectID() {
+		return projectID;
+	}
+	
+	
+	/**
+	 * Get the reference ID.
+	 * @return the reference ID
+	 */
+	public int getReferenceID() {
+		return referenceID;
+	}
+	
+	
+	/**
+	 * Get the version of the PGx knowledge base used with this metadata.
+	 * @return the PGXKnowledgeBase
+	 */
+	public PGXKnowledgeBase getKnowledgeBase() {
+		return knowledgeBase;
+	}
+	
+	
+	/**
+	 * Get the variant table schema.
+	 * @return the TableSchema
+	 */
+	public TableSchema getTableSchema() {
+		return ts;
+	}
+	
+	
+	/**
+	 * Get the annotation formats.
+	 * @return the AnnotationFormat array
+	 */
+	public AnnotationFormat[] getAnnotationFormats() {
+		return annotationFormats;
+	}
+	
+	
+	/**
+	 * Get the column names keyed by column alias.
+	 * @return an unmodifiable map of the column aliases to column names
+	 */
+	public Map<String, String> getColumnAliasToNameMap() {
+		return columnAliasToName;
+	}
+	
+	
+	/**
+	 * Get the allele frequency annotation fields.
+	 * @return an unmodifiable List of the allele frequency CustomFields
+	 */
+	public List<CustomField> getAlleleFrequencyFields() {
+		return alleleFrequencyFields;
+	}
+	
+	
+	/**
+	 * Get the standard condition for the markers of each PGx gene. The
+	 * conditions are not restricted to any DNA ID.
+	 * @return an unmodifiable Map of Conditions keyed by gene symbol
+	 * @precondition the local PGx DB has been initialized
+	 */
+	public synchronized Map<String, Condition> getStandardConditions() throws SQLException {
+		if (standardPGXConditions == null) {
+			standardPGXConditions= Collections.unmodifiableMap(buildConditionList());
+			previousConditions= Collections.emptyMap(); // no longer needed
+		}
+		
+		return standardPGXConditions;
+	}
+	
+	
+	/**
+	 * Get the condition for the markers of all PGx genes. The condition is
+	 * not restricted to any DNA ID.
+	 * @return the Condition for all PGx markers
+	 * @precondition the local PGx DB has been initialized
+	 */
+	public synchronized Condition getAllMarkersCondition() {
+		if (allMarkersPGXCondition == null) {
+			allMarkersPGXCondition= buildMarkerCondition(getListOfAllMarkers());
+		}
+		
+		return allMarkersPGXCondition;
+	}
+	
+	
+	/**
+	 * Get the condition for the novel variants in all PGx genes. The
+	 * condition is not restricted to any DNA ID.
+	 * @return the Condition for novel variants in all PGx genes
+	 * @precondition the local PGx DB has been initialized
+	 */
+	public synchronized Condition getNovelVariantCondition() throws SQLException {
+		if (novelVariantPGXCondition == null) {
+			novelVariantPGXCondition= buildNovelVariantCondition();
+		}
+		
+		return novelVariantPGXCondition;
+	}
+	
+	
+	/**
+	 * Build the standard pharmacogenomic conditions to be used when retrieving 
+	 * variants for any patient's analysis and store these in a list. The
+	 * conditions of the previous knowledge base version are reused for the
+	 * genes that haven't changed since.
+	 * @return a Map of Conditions to be used for all PGx analyses
+	 * @throws SQLException
+	 */
+	private Map<String, Condition> buildConditionList() throws SQLException {
+		Map<String, Condition> queryMap= new HashMap<String, Condition>();
+		
+		/* Get all relevant markers for a particular gene and create a
+		 * Condition for that set. Then add it to the List. */
+			for (String g : knowledgeBase.getGenes()) {
+				if (previousConditions.containsKey(g) && knowledgeBase.getGeneVersion(g) <= previousVersion) {
+					queryMap.put(g, previousConditions.get(g));
+					continue;
+				}
+				
+				try {
+					/* Add all the marker positions for this gene.
+					 * NOTE: You can also search for variants using the dbSNP rsID,
+					 * however, then you rely on the DB to be up-to-date and annotated
+					 * correctly, which is not always the case. It's better to query
+					 * variants by chromosomal coordinates. */
+					queryMap.put(g, buildMarkerCondition(
+						new ArrayList<PGXMarker>(knowledgeBase.getMarkerInfo(g).values())));
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		
+		return queryMap;		
+	}
+	
+	
+	/**
+	 * Build a compact condition that retrieves variants at the positions of 
+	 * all the specified markers.
+	 * 
+	 * Rather than one (chromosome AND position) pair per marker, positions are
+	 * grouped by chromosome. Dense clusters of positions are merged into a
+	 * single position range and the remaining positions are listed in an IN
+	 * clause. This keeps the SQL small as the number of markers grows, but
+	 * ranges can return variants that are not markers, so results must be
+	 * filtered locally against the marker coordinates.
+	 * @param markers the markers to retrieve
+	 * @return the Condition for these markers
+	 */
+	private Condition buildMarkerCondition(List<PGXMarker> markers) {
+		DbColumn chromColumn= ts.getDBColumn(BasicVariantColumns.CHROM);
+		DbColumn positionColumn= ts.getDBColumn(BasicVariantColumns.START_POSITION);
+		
+		/* Group the distinct, sorted marker positions by chromosome. */
+		Map<String, SortedSet<Integer>> positionsByChromosome= new TreeMap<String, SortedSet<Integer>>();
+		for (PGXMarker pgxm : markers) {
+			if (!positionsByChromosome.containsKey(pgxm.chromosome)) {
+				positionsByChromosome.put(pgxm.chromosome, new TreeSet<Integer>());
+			}
+			positionsByChromosome.get(pgxm.chromosome).add(Integer.parseInt(pgxm.position));
+		}
+		
+		ComboCondition query= new ComboCondition(ComboCondition.Op.OR);
+		for (String chromosome : positionsByChromosome.keySet()) {
+			List<Integer> positions= new ArrayList<Integer>(positionsByChromosome.get(chromosome));
+			
+			ComboCondition positionCondition= new ComboCondition(ComboCondition.Op.OR);
+			List<Integer> singlePositions= new ArrayList<Integer>();
+			int start= 0;
+			while (start < positions.size()) {
+				/* Extend this cluster while the next position is close enough. */
+				int end= start;
+				while (end + 1 < positions.size() &&
+					positions.get(end + 1) - positions.get(end) <= MARKER_RANGE_MAX_GAP) {
+					++end;
+				}
+				
+				if (end - start + 1 >= MARKER_RANGE_MIN_POSITIONS) {
+					ComboCondition rangeCondition= new ComboCondition(ComboCondition.Op.AND);
+					rangeCondition.addCondition(
+						BinaryCondition.greaterThan(positionColumn, positions.get(start), true));
+					rangeCondition.addCondition(
+						BinaryCondition.lessThan(positionColumn, positions.get(end), true));
+					positionCondition.addCondition(rangeCondition);
+				} else {
+					singlePositions.addAll(positions.subList(start, end + 1));
+				}
+				
+				start= end + 1;
+			}
+			
+			if (!singlePositions.isEmpty()) {
+				positionCondition.addCondition(new InCondition(positionColumn, singlePositions));
+			}
+			
+			ComboCondition chromosomeCondition= new ComboCondition(ComboCondition.Op.AND);
+			chromosomeCondition.addCondition(BinaryCondition.equalTo(chromColumn, chromosome));
+			chromosomeCondition.addCondition(positionCondition);
+			
+			query.addCondition(chromosomeCondition);
+		}
+		
+		return query;
+	}
+	
+	
+	/** 
+	 * Build the standard pharmacogenomic conditions for NOVEL variants.
+	 * @return a List of Conditions to be used for all PGx analyses of novel variants
+	 */
+	private List<Condition> buildNovelConditionList() {
+			List<Condition> output= new LinkedList<Condition>();
+		
+			/* Get all genic non-synonymous variants. */
+			ComboCondition mutationCondition= new ComboCondition(ComboCondition.Op.OR);
+			for (String mutationEffect : NOVEL_MUTATIONS) {
+				mutationCondition.addCondition(
+					BinaryCondition.iLike(ts.getDBColumn(BasicVariantColumns.JANNOVAR_EFFECT), mutationEffect + "%"));
+			}
+			output.add(mutationCondition);	
+			
+			/* For each of the allele frequency columns, check if the allele 
+			 * frequency is below threshold. If allele frequency at the position
+			 * is null, also report it. */
+			ComboCondition afCondition= new ComboCondition(ComboCondition.Op.OR);
+			for (CustomField cf : alleleFrequencyFields) {
+				DbColumn afColumn= ts.getDBColumn(cf.getColumnName());
+				// include variant if AF is below threshold
+				afCondition.addCondition(
+					BinaryCondition.lessThan(afColumn, PGXAnalysis.AF_THRESHOLD, true));
+				// include variant even if AF information is missing
+				afCondition.addCondition(UnaryCondition.isNull(afColumn));
+			}
+			output.add(afCondition);
+			
+			return output;
+	}
+	
+	
+	/**
+	 * Build a single condition for the low allele frequency variants in all 
+	 * PGx genes, rather than one query per gene. The novel conditions are
+	 * then only attached and evaluated once. The condition is not restricted
+	 * to any DNA ID.
+	 * @return the Condition for novel variants in all PGx genes
+	 */
+	private Condition buildNovelVariantCondition() throws SQLException {
+		List<String> allGeneKeys= new ArrayList<String>(getStandardConditions().keySet());
+		Collections.sort(allGeneKeys);
+		
+		ComboCondition allGeneSymbols= new ComboCondition(ComboCondition.Op.OR);
+		for (String geneKey : allGeneKeys) {
+			allGeneSymbols.addCondition(
+				BinaryCondition.iLike(ts.getDBColumn(BasicVariantColumns.JANNOVAR_SYMBOL), geneKey + "%"));
+		}
+		
+		ComboCondition query= new ComboCondition(ComboCondition.Op.AND);
+		query.addCondition(allGeneSymbols);
+		
+		/* Ensure that the patient actually has this variant, and is not
+		 * homozygous for the reference. This is important if reference 
+		 * positions are reported, which happens in a pgx analysis. In
+		 * general, VCF files do not report homozygous ref positions. */
+		query.addCondition(
+			BinaryCondition.notiLike(ts.getDBColumn(BasicVariantColumns.GT), "0%0"));
+		
+		/* Add all default novel Conditions to this query. */
+		for (Condition c : buildNovelConditionList()) {
+			query.addCondition(c);
+		}
+		
+		return query;
+	}
+	
+	
+	/**
+	 * Get a list of all PGX markers.
+	 */
+	private List<PGXMarker> getListOfAllMarkers() {
+		List<PGXMarker> output= new LinkedList<PGXMarker>();
+		try {
+			for (String gene : knowledgeBase.getGenes()) {
+				output.addAll(knowledgeBase.getMarkerInfo(gene).values());
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		
+		return output;
+	}
+}
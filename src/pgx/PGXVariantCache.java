@@ -0,0 +1,483 @@
+package pgx;
+
+import com.healthmarketscience.sqlbuilder.Condition;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ut.biolab.medsavant.MedSavantClient;
+import org.ut.biolab.medsavant.client.settings.DirectorySettings;
+import org.ut.biolab.medsavant.client.view.login.LoginController;
+import org.ut.biolab.medsavant.shared.model.SessionExpiredException;
+
+/**
+ * Local cache of the variant rows retrieved by PGx queries for each patient,
+ * so that revisiting a patient does not repeat all the remote queries.
+ *
+ * Entries are keyed by project ID, reference ID, DNA ID and a hash of the
+ * query condition, and hold all the raw rows returned by the query. Each
+ * entry is written through to a gzipped file in the MedSavant directory, so
+ * the cache survives a restart, and the most recently used entries are also
+ * kept in memory. Entries are reloaded from their files when needed.
+ *
+ * Cache files start with a format version, and hold each row as a column
+ * count followed by type-tagged values, so they don't depend on Java
+ * serialization of the row classes. Files with another version are
+ * discarded.
+ *
+ * Entries expire after MAX_AGE_MILLIS. Entries older than RECHECK_AGE_MILLIS
+ * are checked against the server with a row count query, which is much
+ * cheaper than retrieving the rows again, and discarded if the count changed.
+ */
+public class PGXVariantCache {
+
+	private static Log log= LogFactory.getLog(MedSavantClient.class);
+
+	/* The maximum number of query results kept in memory. */
+	private static final int MAX_MEMORY_ENTRIES= 64;
+	/* Entries older than this are discarded. */
+	private static final long MAX_AGE_MILLIS= 24 * 60 * 60 * 1000L;
+	/* Entries older than this are validated with a row count before use. */
+	private static final long RECHECK_AGE_MILLIS= 5 * 60 * 1000L;
+	private static final String CACHE_DIRECTORY_NAME= "pgx_variant_cache";
+	private static final String CACHE_FILE_SUFFIX= ".rows.gz";
+	private static final int CACHE_FILE_MAGIC= 0x50475856; // "PGXV"
+	private static final int CACHE_FILE_VERSION= 1;
+	/* Type tags of the values in a cache file. */
+	private static final byte NULL_VALUE= 0;
+	private static final byte STRING_VALUE= 1;
+	private static final byte INTEGER_VALUE= 2;
+	private static final byte LONG_VALUE= 3;
+	private static final byte DOUBLE_VALUE= 4;
+	private static final byte FLOAT_VALUE= 5;
+	private static final byte BOOLEAN_VALUE= 6;
+	private static final byte SHORT_VALUE= 7;
+	private static final byte BIG_DECIMAL_VALUE= 8;
+	private static final byte DATE_VALUE= 9;
+	private static final byte TIMESTAMP_VALUE= 10;
+
+	private static PGXVariantCache instance;
+
+	private File cacheDirectory;
+	private Map<String, CacheEntry> memoryCache= new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+			// already written through to disk
+			return size() > MAX_MEMORY_ENTRIES;
+		}
+	};
+
+
+	/**
+	 * Create a cache that spills to the specified directory.
+	 * @param cacheDirectory the directory for cache files
+	 */
+	private PGXVariantCache(File cacheDirectory) {
+		this.cacheDirectory= cacheDirectory;
+	}
+
+
+	/**
+	 * Get the shared variant cache.
+	 * @return the PGXVariantCache
+	 */
+	public static synchronized PGXVariantCache getInstance() {
+		if (instance == null) {
+			instance= new PGXVariantCache(
+				new File(DirectorySettings.getMedSavantDirectory(), CACHE_DIRECTORY_NAME));
+		}
+
+		return instance;
+	}
+
+
+	/**
+	 * Get the cache key for a query.
+	 * @param projectID the project ID
+	 * @param referenceID the reference ID
+	 * @param dnaID the DNA ID
+	 * @param query the query condition
+	 * @return the key String
+	 */
+	public static String getKey(int projectID, int referenceID, String dnaID, Condition query) {
+		return projectID + "_" + referenceID + "_" + dnaID + "_" + getHash(query.toString());
+	}
+
+
+	/**
+	 * Get the cached rows for a query, if they are still valid. The cache is
+	 * only locked to look up and publish entries, not while an entry is read
+	 * from disk or validated with the server, so other analyses aren't
+	 * blocked by a remote call.
+	 * @param key the cache key from {@link #getKey(int, int, String, Condition)}
+	 * @param projectID the project ID
+	 * @param referenceID the reference ID
+	 * @param query the query condition, used to validate older entries
+	 * @return the cached rows; null if there is no valid entry
+	 */
+	public List<Object[]> get(String key, int projectID, int referenceID, Condition query)
+		throws SQLException, RemoteException, SessionExpiredException {
+
+		CacheEntry entry;
+		synchronized (this) {
+			entry= memoryCache.get(key);
+		}
+		
+		if (entry == null) {
+			entry= readFromDisk(key);
+			if (entry == null) {
+				return null;
+			}
+			
+			/* Another thread may have published an entry in the meantime. */
+			synchronized (this) {
+				CacheEntry current= memoryCache.get(key);
+				if (current == null) {
+					memoryCache.put(key, entry);
+				} else {
+					entry= current;
+				}
+			}
+		}
+
+		long now= System.currentTimeMillis();
+		if (now - entry.createdTime > MAX_AGE_MILLIS) {
+			remove(key, entry);
+			return null;
+		} else if (now - entry.checkedTime > RECHECK_AGE_MILLIS) {
+			/* Check that the number of rows on the server hasn't changed. */
+			Condition[][] conditionMatrix= new Condition[1][1];
+			conditionMatrix[0][0]= query;
+			int rowCount= MedSavantClient.VariantManager.getFilteredVariantCount(
+				LoginController.getInstance().getSessionID(), projectID, referenceID, conditionMatrix);
+			if (rowCount != entry.rows.size()) {
+				remove(key, entry);
+				return null;
+			}
+			entry.checkedTime= System.currentTimeMillis();
+		}
+
+		return entry.rows;
+	}
+
+
+	/**
+	 * Cache all the rows returned by a query, writing them through to disk.
+	 * Only complete results should be cached.
+	 * @param key the cache key from {@link #getKey(int, int, String, Condition)}
+	 * @param rows all the rows returned by the query
+	 */
+	public void put(String key, List<Object[]> rows) {
+		CacheEntry entry= new CacheEntry(key, new ArrayList<Object[]>(rows), System.currentTimeMillis());
+		writeToDisk(key, entry);
+		
+		synchronized (this) {
+			memoryCache.put(key, entry);
+		}
+	}
+
+
+	/**
+	 * Remove an entry from the cache.
+	 * @param key the cache key
+	 */
+	public synchronized void remove(String key) {
+		memoryCache.remove(key);
+		getCacheFile(key).delete();
+	}
+
+
+	/**
+	 * Remove an entry from the cache, unless it has already been replaced.
+	 * @param key the cache key
+	 * @param entry the CacheEntry found to be invalid
+	 */
+	private synchronized void remove(String key, CacheEntry entry) {
+		CacheEntry current= memoryCache.get(key);
+		if (current == null || current == entry) {
+			remove(key);
+		}
+	}
+
+
+	/**
+	 * Remove all entries from the cache, in memory and on disk.
+	 */
+	public synchronized void clear() {
+		memoryCache.clear();
+
+		File[] cacheFiles= cacheDirectory.listFiles();
+		if (cacheFiles != null) {
+			for (File f : cacheFiles) {
+				if (f.getName().endsWith(CACHE_FILE_SUFFIX)) {
+					f.delete();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Write an entry to its cache file. The file is written under a
+	 * temporary name and then renamed, so a reader never sees a partial file.
+	 * @param key the cache key
+	 * @param entry the CacheEntry
+	 */
+	private void writeToDisk(String key, CacheEntry entry) {
+		if (!cacheDirectory.exists() && !cacheDirectory.mkdirs()) {
+			log.error("[" + PGXVariantCache.class.getSimpleName() + "]: Unable to create " + cacheDirectory);
+			return;
+		}
+
+		File cacheFile= getCacheFile(key);
+		File tempFile= null;
+		DataOutputStream out= null;
+		try {
+			tempFile= File.createTempFile(cacheFile.getName(), ".tmp", cacheDirectory);
+			out= new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tempFile))));
+			out.writeInt(CACHE_FILE_MAGIC);
+			out.writeInt(CACHE_FILE_VERSION);
+			out.writeUTF(entry.key);
+			out.writeLong(entry.createdTime);
+			out.writeInt(entry.rows.size());
+			for (Object[] row : entry.rows) {
+				out.writeInt(row.length);
+				for (Object value : row) {
+					writeValue(out, value);
+				}
+			}
+			out.close();
+			out= null;
+
+			if (!tempFile.renameTo(cacheFile)) {
+				cacheFile.delete();
+				if (!tempFile.renameTo(cacheFile)) {
+					throw new IOException("Unable to rename " + tempFile + " to " + cacheFile);
+				}
+			}
+			tempFile= null;
+		} catch (IOException ioe) {
+			log.error("[" + PGXVariantCache.class.getSimpleName() + "]: Error writing cache file " + ioe.toString());
+		} finally {
+			closeQuietly(out);
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+		}
+	}
+
+
+	/**
+	 * Read an entry from its cache file.
+	 * @param key the cache key
+	 * @return the CacheEntry; null if there is no readable cache file for this key
+	 */
+	private CacheEntry readFromDisk(String key) {
+		File cacheFile= getCacheFile(key);
+		if (!cacheFile.exists()) {
+			return null;
+		}
+
+		DataInputStream in= null;
+		try {
+			in= new DataInputStream(new GZIPInputStream(new BufferedInputStream(
+				new FileInputStream(cacheFile))));
+			
+			// guard against other formats and hash collisions
+			if (in.readInt() == CACHE_FILE_MAGIC && in.readInt() == CACHE_FILE_VERSION &&
+				key.equals(in.readUTF())) {
+				
+				long createdTime= in.readLong();
+				int rowCount= in.readInt();
+				List<Object[]> rows= new ArrayList<Object[]>(rowCount);
+				for (int i= 0; i != rowCount; ++i) {
+					Object[] row= new Object[in.readInt()];
+					for (int j= 0; j != row.length; ++j) {
+						row[j]= readValue(in);
+					}
+					rows.add(row);
+				}
+				
+				return new CacheEntry(key, rows, createdTime);
+			}
+		} catch (IOException ioe) {
+			log.error("[" + PGXVariantCache.class.getSimpleName() + "]: Error reading cache file " + ioe.toString());
+		} finally {
+			closeQuietly(in);
+		}
+
+		cacheFile.delete();
+		return null;
+	}
+
+
+	/**
+	 * Write a single column value with its type tag.
+	 * @param out the stream
+	 * @param value the column value
+	 * @throws IOException if the value's type isn't supported
+	 */
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL_VALUE);
+		} else if (value instanceof String) {
+			byte[] bytes= ((String) value).getBytes("UTF-8");
+			out.writeByte(STRING_VALUE);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER_VALUE);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG_VALUE);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE_VALUE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Float) {
+			out.writeByte(FLOAT_VALUE);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN_VALUE);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Short) {
+			out.writeByte(SHORT_VALUE);
+			out.writeShort((Short) value);
+		} else if (value instanceof BigDecimal) {
+			out.writeByte(BIG_DECIMAL_VALUE);
+			out.writeUTF(value.toString());
+		} else if (value instanceof Timestamp) {
+			out.writeByte(TIMESTAMP_VALUE);
+			out.writeLong(((Timestamp) value).getTime());
+			out.writeInt(((Timestamp) value).getNanos());
+		} else if (value instanceof java.util.Date) {
+			out.writeByte(DATE_VALUE);
+			out.writeLong(((java.util.Date) value).getTime());
+		} else {
+			throw new IOException("Unsupported column type " + value.getClass().getName());
+		}
+	}
+
+
+	/**
+	 * Read a single column value written by {@link #writeValue(DataOutputStream, Object)}.
+	 * @param in the stream
+	 * @return the column value
+	 * @throws IOException if the type tag is unknown
+	 */
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type= in.readByte();
+		switch (type) {
+			case NULL_VALUE:
+				return null;
+			case STRING_VALUE:
+				byte[] bytes= new byte[in.readInt()];
+				in.readFully(bytes);
+				return new String(bytes, "UTF-8");
+			case INTEGER_VALUE:
+				return in.readInt();
+			case LONG_VALUE:
+				return in.readLong();
+			case DOUBLE_VALUE:
+				return in.readDouble();
+			case FLOAT_VALUE:
+				return in.readFloat();
+			case BOOLEAN_VALUE:
+				return in.readBoolean();
+			case SHORT_VALUE:
+				return in.readShort();
+			case BIG_DECIMAL_VALUE:
+				return new BigDecimal(in.readUTF());
+			case DATE_VALUE:
+				return new Date(in.readLong());
+			case TIMESTAMP_VALUE:
+				Timestamp timestamp= new Timestamp(in.readLong());
+				timestamp.setNanos(in.readInt());
+				return timestamp;
+			default:
+				throw new IOException("Unknown column type " + type);
+		}
+	}
+
+
+	/**
+	 * Get the cache file for a key.
+	 * @param key the cache key
+	 * @return the cache File
+	 */
+	private File getCacheFile(String key) {
+		return new File(cacheDirectory, getHash(key) + CACHE_FILE_SUFFIX);
+	}
+
+
+	/**
+	 * Get a hex SHA-1 hash of a string.
+	 * @param s the String
+	 * @return the hash String
+	 */
+	private static String getHash(String s) {
+		try {
+			MessageDigest md= MessageDigest.getInstance("SHA-1");
+			return String.format("%040x", new BigInteger(1, md.digest(s.getBytes("UTF-8"))));
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);
+		} catch (IOException ioe) {
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+
+	/**
+	 * Close a stream, ignoring any errors.
+	 * @param c the stream
+	 */
+	private static void closeQuietly(Closeable c) {
+		if (c != null) {
+			try {
+				c.close();
+			} catch (IOException ioe) {
+				// nothing else to do
+			}
+		}
+	}
+
+
+	/**
+	 * All the rows returned by a single query.
+	 */
+	private static class CacheEntry {
+		private final String key;
+		private final List<Object[]> rows;
+		private final long createdTime;
+		private volatile long checkedTime;
+
+		public CacheEntry(String key, List<Object[]> rows, long createdTime) {
+			this.key= key;
+			this.rows= rows;
+			this.createdTime= createdTime;
+			this.checkedTime= createdTime;
+		}
+	}
+}
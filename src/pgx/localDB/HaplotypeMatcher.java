@@ -0,0 +1,537 @@
+package pgx.localDB;
+
+import NaturalSorting.NaturalOrderComparator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.commons.lang3.StringUtils;
+import pgx.PGXGenotype;
+
+/**
+ * Matches marker alleles to the haplotype definitions of a single gene.
+ *
+ * Every distinct (marker, allele) pair in the gene's haplotype definitions
+ * is assigned a bit; a haplotype may define several alleles of a marker. Each haplotype is compiled to the bit vector of its
+ * marker alleles and a mask of the markers it defines, packed into longs.
+ * A haplotype matches a set of marker alleles if it defines all their
+ * markers and has all their allele bits, which takes a few bitwise
+ * operations per haplotype instead of a DB query. The number of markers by
+ * which a haplotype differs from a set of marker alleles is the number of
+ * query alleles it doesn't share, counted with a popcount. The haplotypes
+ * carrying each allele are also kept as a bit vector, so unphased genotypes
+ * can be resolved to haplotype pairs by intersecting carriers site by site.
+ *
+ * Marker IDs are arbitrary strings (for example TPMT's "124C>G"). Markers
+ * and alleles are compared like the DB: case-insensitively and ignoring
+ * trailing spaces in alleles.
+ */
+public class HaplotypeMatcher {
+
+	/* Haplotype symbols in natural order, indexed like the bit vectors. */
+	private final List<String> haplotypes;
+	/* The gene's listed markers are numbered first, followed by any markers
+	 * that only appear in haplotype definitions. */
+	private final Map<String, Integer> markerIndexes= newCaseInsensitiveMap();
+	private final int listedMarkerCount;
+	private final int alleleCount;
+	/* The allele bit of each allele, for each marker index. */
+	private final List<Map<String, Integer>> alleleBits= new ArrayList<Map<String, Integer>>();
+	/* The marker alleles and defined markers of each haplotype. */
+	private final long[][] haplotypeAlleles;
+	private final long[][] haplotypeMarkers;
+	/* The haplotypes carrying each allele, indexed by allele bit. */
+	private final long[][] alleleCarriers;
+
+
+	/**
+	 * Compile the haplotype definitions of a gene.
+	 * @param markers the markers of the gene, in marker list order
+	 * @param definitions Maps of the haplotype's Sets of alleles keyed by
+	 *	marker ID, keyed by haplotype symbol
+	 */
+	public HaplotypeMatcher(List<String> markers, Map<String, Map<String, Set<String>>> definitions) {
+		List<String> symbols= new ArrayList<String>(definitions.keySet());
+		Collections.sort(symbols, new NaturalOrderComparator());
+		this.haplotypes= Collections.unmodifiableList(symbols);
+
+		/* Number the markers, including any defined by haplotypes only, and
+		 * the alleles of each marker. */
+		for (String marker : markers) {
+			getMarkerIndex(marker);
+		}
+		this.listedMarkerCount= markerIndexes.size();
+		int count= 0;
+		for (Map<String, Set<String>> definition : definitions.values()) {
+			for (Map.Entry<String, Set<String>> markerAlleles : definition.entrySet()) {
+				Map<String, Integer> bits= alleleBits.get(getMarkerIndex(markerAlleles.getKey()));
+				for (String markerAllele : markerAlleles.getValue()) {
+					String allele= normalizeAllele(markerAllele);
+					if (!bits.containsKey(allele)) {
+						bits.put(allele, count++);
+					}
+				}
+			}
+		}
+		this.alleleCount= count;
+
+		/* Compile each haplotype. */
+		this.haplotypeAlleles= new long[haplotypes.size()][getWordCount(alleleCount)];
+		this.haplotypeMarkers= new long[haplotypes.size()][getWordCount(markerIndexes.size())];
+		this.alleleCarriers= new long[alleleCount][getWordCount(haplotypes.size())];
+		for (int h= 0; h < haplotypes.size(); ++h) {
+			for (Map.Entry<String, Set<String>> markerAlleles : definitions.get(haplotypes.get(h)).entrySet()) {
+				int m= markerIndexes.get(markerAlleles.getKey());
+				setBit(haplotypeMarkers[h], m);
+				for (String markerAllele : markerAlleles.getValue()) {
+					int bit= alleleBits.get(m).get(normalizeAllele(markerAllele));
+					setBit(haplotypeAlleles[h], bit);
+					setBit(alleleCarriers[bit], h);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Get all haplotypes of this gene.
+	 * @return an unmodifiable List of haplotype symbols, in natural order
+	 */
+	public List<String> getHaplotypes() {
+		return haplotypes;
+	}
+
+
+	/**
+	 * Get the haplotypes that have all of these marker alleles.
+	 * @param markerAlleles a Map of alleles keyed by marker; if empty, all haplotypes match
+	 * @return a List of the matching haplotype symbols, in natural order; empty
+	 *	if a marker or allele is not in any haplotype definition
+	 */
+	public List<String> getMatchingHaplotypes(Map<String, String> markerAlleles) {
+		long[] queryAlleles= new long[getWordCount(alleleCount)];
+		long[] queryMarkers= new long[getWordCount(markerIndexes.size())];
+		for (Map.Entry<String, String> markerAllele : markerAlleles.entrySet()) {
+			Integer m= markerIndexes.get(markerAllele.getKey());
+			Integer bit= m == null || markerAllele.getValue() == null ? null :
+				alleleBits.get(m).get(normalizeAllele(markerAllele.getValue()));
+			if (bit == null) {
+				return Collections.emptyList();
+			}
+			setBit(queryMarkers, m);
+			setBit(queryAlleles, bit);
+		}
+
+		List<String> output= new ArrayList<String>();
+		for (int h= 0; h < haplotypes.size(); ++h) {
+			if (isSubset(queryMarkers, haplotypeMarkers[h]) && isSubset(queryAlleles, haplotypeAlleles[h])) {
+				output.add(haplotypes.get(h));
+			}
+		}
+
+		return output;
+	}
+
+
+	/**
+	 * Get the distance of every haplotype from these marker alleles, in one
+	 * pass over the compiled haplotypes. The distance is the number of
+	 * markers whose allele differs from the haplotype's, or that the
+	 * haplotype doesn't define.
+	 * @param markerAlleles a Map of alleles keyed by marker
+	 * @return a List with a HaplotypeDistance for each haplotype, sorted by
+	 *	distance and then in natural order
+	 */
+	public List<HaplotypeDistance> getDistances(Map<String, String> markerAlleles) {
+		/* Markers that no haplotype has with this allele differ for all
+		 * haplotypes. */
+		long[] queryAlleles= new long[getWordCount(alleleCount)];
+		int[] queryBits= new int[markerAlleles.size()];
+		List<String> queryMarkers= new ArrayList<String>(markerAlleles.keySet());
+		for (int i= 0; i < queryMarkers.size(); ++i) {
+			String allele= markerAlleles.get(queryMarkers.get(i));
+			Integer m= markerIndexes.get(queryMarkers.get(i));
+			Integer bit= m == null || allele == null ? null : alleleBits.get(m).get(normalizeAllele(allele));
+			queryBits[i]= bit == null ? -1 : bit;
+			if (bit != null) {
+				setBit(queryAlleles, bit);
+			}
+		}
+
+		List<HaplotypeDistance> output= new ArrayList<HaplotypeDistance>();
+		for (int h= 0; h < haplotypes.size(); ++h) {
+			int shared= 0;
+			for (int w= 0; w < queryAlleles.length; ++w) {
+				shared += Long.bitCount(queryAlleles[w] & haplotypeAlleles[h][w]);
+			}
+
+			List<String> differingMarkers= new ArrayList<String>();
+			if (shared < queryMarkers.size()) {
+				for (int i= 0; i < queryMarkers.size(); ++i) {
+					if (queryBits[i] < 0 || !isSet(haplotypeAlleles[h], queryBits[i])) {
+						differingMarkers.add(queryMarkers.get(i));
+					}
+				}
+			}
+			output.add(new HaplotypeDistance(haplotypes.get(h), queryMarkers.size() - shared,
+				Collections.unmodifiableList(differingMarkers)));
+		}
+
+		/* Stable, so haplotypes at the same distance stay in natural order. */
+		Collections.sort(output, new Comparator<HaplotypeDistance>() {
+			@Override
+			public int compare(HaplotypeDistance hd1, HaplotypeDistance hd2) {
+				return hd1.distance < hd2.distance ? -1 : (hd1.distance == hd2.distance ? 0 : 1);
+			}
+		});
+
+		return output;
+	}
+
+
+	/**
+	 * Get the haplotypes closest to these marker alleles.
+	 * @param markerAlleles a Map of alleles keyed by marker
+	 * @param maxDistance the maximum distance of the closest haplotypes
+	 * @return a List of the HaplotypeDistances at the smallest distance, in
+	 *	natural order; empty if no haplotype is within the maximum distance
+	 */
+	public List<HaplotypeDistance> getNearestHaplotypes(Map<String, String> markerAlleles, int maxDistance) {
+		List<HaplotypeDistance> output= new ArrayList<HaplotypeDistance>();
+		for (HaplotypeDistance hd : getDistances(markerAlleles)) {
+			if (hd.distance > maxDistance || (!output.isEmpty() && hd.distance > output.get(0).distance)) {
+				break;
+			}
+			output.add(hd);
+		}
+
+		return output;
+	}
+
+
+	/**
+	 * Get the haplotypes that have the genotypes of all of this gene's
+	 * listed markers. Genotypes of markers that are not in the gene's marker
+	 * list are ignored.
+	 * @param markerGenotypes a Map of genotypes keyed by marker
+	 * @return a List of the matching haplotype symbols, in natural order
+	 */
+	public List<String> getMatchingHaplotypesForGenotypes(Map<String, PGXGenotype> markerGenotypes) {
+		Map<String, String> markerAlleles= newCaseInsensitiveMap();
+		for (Map.Entry<String, PGXGenotype> markerGenotype : markerGenotypes.entrySet()) {
+			Integer m= markerIndexes.get(markerGenotype.getKey());
+			if (m != null && m < listedMarkerCount) {
+				markerAlleles.put(markerGenotype.getKey(), markerGenotype.getValue().getGenotype());
+			}
+		}
+
+		return getMatchingHaplotypes(markerAlleles);
+	}
+
+
+	/**
+	 * Get every pair of haplotypes consistent with unphased genotypes of
+	 * this gene's listed markers. A pair is consistent if, at every genotyped
+	 * marker, one haplotype has the first allele and the other has the
+	 * second. Genotypes of markers that are not in the gene's marker list
+	 * are ignored.
+	 *
+	 * Rather than trying all 2^k phasings of k heterozygous markers, the
+	 * haplotypes that carry either allele are intersected marker by marker.
+	 * Each remaining haplotype determines the alleles of its partner at
+	 * every marker, so its partners are found with one more intersection.
+	 * @param firstGenotypes a Map of the first genotype of each marker
+	 * @param secondGenotypes a Map of the second genotype of each marker
+	 * @return a List of the consistent DiplotypeCandidates, ranked by the
+	 *	number of ungenotyped markers their haplotype definitions rely on,
+	 *	and then in natural order; empty if no pair of haplotypes is consistent
+	 */
+	public List<DiplotypeCandidate> getDiplotypeCandidates(Map<String, PGXGenotype> firstGenotypes,
+		Map<String, PGXGenotype> secondGenotypes) {
+		
+		/* The allele bits of each genotyped marker. An allele that isn't in
+		 * any haplotype definition rules out every pair. */
+		List<int[]> sites= new ArrayList<int[]>();
+		long[] typedMarkers= new long[getWordCount(markerIndexes.size())];
+		for (Map.Entry<String, PGXGenotype> markerGenotype : firstGenotypes.entrySet()) {
+			Integer m= markerIndexes.get(markerGenotype.getKey());
+			PGXGenotype second= secondGenotypes.get(markerGenotype.getKey());
+			if (m == null || m >= listedMarkerCount || second == null) {
+				continue;
+			}
+			
+			Integer firstBit= getAlleleBit(m, markerGenotype.getValue().getGenotype());
+			Integer secondBit= getAlleleBit(m, second.getGenotype());
+			if (firstBit == null || secondBit == null) {
+				return Collections.emptyList();
+			}
+			sites.add(new int[] { firstBit, secondBit });
+			setBit(typedMarkers, m);
+		}
+		
+		/* Prune the haplotypes to those with one of the two alleles at every
+		 * marker. */
+		long[] candidates= new long[getWordCount(haplotypes.size())];
+		for (int h= 0; h < haplotypes.size(); ++h) {
+			setBit(candidates, h);
+		}
+		for (int[] site : sites) {
+			if (!intersect(candidates, alleleCarriers[site[0]], alleleCarriers[site[1]])) {
+				return Collections.emptyList();
+			}
+		}
+		
+		/* The partner of each candidate has the other allele at every marker.
+		 * Partners are taken in natural order from the candidate onwards, so
+		 * each unordered pair is found once. */
+		List<DiplotypeCandidate> output= new ArrayList<DiplotypeCandidate>();
+		for (int h1= nextSetBit(candidates, 0); h1 >= 0; h1= nextSetBit(candidates, h1 + 1)) {
+			long[] partners= candidates.clone();
+			for (int[] site : sites) {
+				int partnerBit= isSet(haplotypeAlleles[h1], site[0]) ? site[1] : site[0];
+				if (!intersect(partners, alleleCarriers[partnerBit], alleleCarriers[partnerBit])) {
+					break;
+				}
+			}
+			
+			for (int h2= nextSetBit(partners, h1); h2 >= 0; h2= nextSetBit(partners, h2 + 1)) {
+				output.add(new DiplotypeCandidate(haplotypes.get(h1), haplotypes.get(h2),
+					getUntypedMarkerCount(h1, typedMarkers) + getUntypedMarkerCount(h2, typedMarkers)));
+			}
+		}
+		
+		/* Stable, so candidates with the same rank stay in natural order. */
+		Collections.sort(output, new Comparator<DiplotypeCandidate>() {
+			@Override
+			public int compare(DiplotypeCandidate dc1, DiplotypeCandidate dc2) {
+				return dc1.untypedMarkerCount < dc2.untypedMarkerCount ? -1 :
+					(dc1.untypedMarkerCount == dc2.untypedMarkerCount ? 0 : 1);
+			}
+		});
+		
+		return output;
+	}
+	
+	
+	/**
+	 * Get the bit of an allele of this marker; null if no haplotype has it.
+	 */
+	private Integer getAlleleBit(int markerIndex, String allele) {
+		return allele == null ? null : alleleBits.get(markerIndex).get(normalizeAllele(allele));
+	}
+	
+	
+	/**
+	 * Get the number of markers defined by a haplotype that were not genotyped.
+	 */
+	private int getUntypedMarkerCount(int haplotypeIndex, long[] typedMarkers) {
+		int count= 0;
+		for (int w= 0; w < typedMarkers.length; ++w) {
+			count += Long.bitCount(haplotypeMarkers[haplotypeIndex][w] & ~typedMarkers[w]);
+		}
+		
+		return count;
+	}
+
+
+	/**
+	 * Get the index of this marker, numbering it if it is new.
+	 */
+	private int getMarkerIndex(String marker) {
+		Integer m= markerIndexes.get(marker);
+		if (m == null) {
+			m= markerIndexes.size();
+			markerIndexes.put(marker, m);
+			alleleBits.add(HaplotypeMatcher.<Integer>newCaseInsensitiveMap());
+		}
+
+		return m;
+	}
+
+
+	/**
+	 * Check if all bits set in a are also set in b.
+	 */
+	private static boolean isSubset(long[] a, long[] b) {
+		for (int i= 0; i < a.length; ++i) {
+			if ((a[i] & ~b[i]) != 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Check if a bit is set in a packed bit vector.
+	 */
+	private static boolean isSet(long[] words, int bit) {
+		return (words[bit >>> 6] & (1L << (bit & 63))) != 0;
+	}
+
+
+	/**
+	 * Keep only the bits of words that are set in a or b.
+	 * @return true if any bit is still set, false otherwise
+	 */
+	private static boolean intersect(long[] words, long[] a, long[] b) {
+		boolean any= false;
+		for (int i= 0; i < words.length; ++i) {
+			words[i] &= a[i] | b[i];
+			any |= words[i] != 0;
+		}
+		
+		return any;
+	}
+
+
+	/**
+	 * Get the index of the first set bit at or after this one; -1 if there is none.
+	 */
+	private static int nextSetBit(long[] words, int bit) {
+		int w= bit >>> 6;
+		if (w >= words.length) {
+			return -1;
+		}
+		
+		long word= words[w] & (-1L << (bit & 63));
+		while (word == 0) {
+			if (++w == words.length) {
+				return -1;
+			}
+			word= words[w];
+		}
+		
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+
+	/**
+	 * Set a bit in a packed bit vector.
+	 */
+	private static void setBit(long[] words, int bit) {
+		words[bit >>> 6] |= 1L << (bit & 63);
+	}
+
+
+	/**
+	 * Get the number of longs needed to pack this many bits.
+	 */
+	private static int getWordCount(int bits) {
+		return (bits + 63) >>> 6;
+	}
+
+
+	/**
+	 * Alleles are compared without trailing spaces, like the DB.
+	 */
+	private static String normalizeAllele(String allele) {
+		return StringUtils.stripEnd(allele, " ");
+	}
+
+
+	/**
+	 * Create a map with case-insensitive String keys, matching the DB.
+	 */
+	private static <V> Map<String, V> newCaseInsensitiveMap() {
+		return new TreeMap<String, V>(String.CASE_INSENSITIVE_ORDER);
+	}
+
+
+	/**
+	 * A haplotype and the markers by which it differs from a set of marker
+	 * alleles.
+	 */
+	public static class HaplotypeDistance {
+
+		private final String haplotype;
+		private final int distance;
+		private final List<String> differingMarkers;
+
+		public HaplotypeDistance(String haplotype, int distance, List<String> differingMarkers) {
+			this.haplotype= haplotype;
+			this.distance= distance;
+			this.differingMarkers= differingMarkers;
+		}
+
+		/**
+		 * Get the haplotype symbol.
+		 */
+		public String getHaplotype() {
+			return haplotype;
+		}
+
+		/**
+		 * Get the number of markers that differ.
+		 */
+		public int getDistance() {
+			return distance;
+		}
+
+		/**
+		 * Get the markers that differ, in the order they were queried.
+		 */
+		public List<String> getDifferingMarkers() {
+			return differingMarkers;
+		}
+
+		@Override
+		public String toString() {
+			return haplotype + " (distance " + distance + ": " + differingMarkers + ")";
+		}
+	}
+
+
+	/**
+	 * A pair of haplotypes consistent with a set of unphased genotypes.
+	 */
+	public static class DiplotypeCandidate {
+
+		private final String firstHaplotype;
+		private final String secondHaplotype;
+		private final int untypedMarkerCount;
+
+		public DiplotypeCandidate(String firstHaplotype, String secondHaplotype, int untypedMarkerCount) {
+			this.firstHaplotype= firstHaplotype;
+			this.secondHaplotype= secondHaplotype;
+			this.untypedMarkerCount= untypedMarkerCount;
+		}
+
+		/**
+		 * Get the first haplotype symbol, in natural order.
+		 */
+		public String getFirstHaplotype() {
+			return firstHaplotype;
+		}
+
+		/**
+		 * Get the second haplotype symbol, in natural order.
+		 */
+		public String getSecondHaplotype() {
+			return secondHaplotype;
+		}
+
+		/**
+		 * Get the number of ungenotyped markers defined by the two haplotypes.
+		 */
+		public int getUntypedMarkerCount() {
+			return untypedMarkerCount;
+		}
+
+		/**
+		 * Get the diplotype in the form "*1/*17".
+		 */
+		public String getDiplotype() {
+			return firstHaplotype + "/" + secondHaplotype;
+		}
+
+		@Override
+		public String toString() {
+			return getDiplotype() + " (" + untypedMarkerCount + " ungenotyped markers)";
+		}
+	}
+}
@@ -3,16 +3,38 @@ package pgx.localDB;
 import CSVLoader.CSVLoader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.lang.ref.WeakReference;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.ut.biolab.medsavant.MedSavantClient;
 import org.ut.biolab.medsavant.client.settings.DirectorySettings;
+import pgx.PGXException;
+import pgx.localDB.PGXDBFunctions.PGXMarker;
 
 
 /**
@@ -22,6 +44,8 @@ import org.ut.biolab.medsavant.client.settings.DirectorySettings;
  */
 public class PGXDB {
 	
+	private static Log log= LogFactory.getLog(MedSavantClient.class);
+	
 	private static final String db_path_prefix= "mem:pharmacogenomicsdb";
 	private static final String DB_URL= "jdbc:hsqldb:" + db_path_prefix;
 	private static final String GENE_MARKER_LIST_FILE_PATH= "/pgx/localDBFiles/gene_marker_list.txt";
@@ -36,8 +60,50 @@ public class PGXDB {
 	private static final String HAPLOTYPE_ACTIVITY_TABLE_NAME= "haplotype_activity";
 	private static final String ACTIVITY_TO_METABOLIZER_TABLE_NAME= "activity_to_metabolizer";
 	private static final String PHENOTYPE_TO_METABOLIZER_TABLE_NAME= "phenotype_to_metabolizer";
+	private static final String HAPLOTYPE_ALLELES_TABLE_NAME= "haplotype_alleles";
+	
+	/* The packaged text files and the tables they populate, in load order. */
+	static final String[] TABLE_FILE_PATHS= { GENE_MARKER_LIST_FILE_PATH,
+		HAPLOTYPE_MARKERS_FILE_PATH, MARKER_COORDINATES_FILE_PATH, HAPLOTYPE_ACTIVITY_FILE_PATH,
+		ACTIVITY_TO_METABOLIZER_FILE_PATH, PHENOTYPE_TO_METABOLIZER_FILE_PATH };
+	static final String[] TABLE_NAMES= { GENE_MARKER_LIST_TABLE_NAME,
+		HAPLOTYPE_MARKERS_TABLE_NAME, MARKER_COORDINATES_TABLE_NAME, HAPLOTYPE_ACTIVITY_TABLE_NAME,
+		ACTIVITY_TO_METABOLIZER_TABLE_NAME, PHENOTYPE_TO_METABOLIZER_TABLE_NAME };
+	
+	/* The maximum number of idle query sessions kept open for reuse. */
+	private static final int MAX_IDLE_SESSIONS= Runtime.getRuntime().availableProcessors();
 	
 	private static Connection conn;
+	/* The current version of the knowledge base. Replaced as a whole when the
+	 * DB is updated, so readers always see a complete version. */
+	private static volatile PGXKnowledgeBase knowledgeBase;
+	/* Every version of the knowledge base created, for as long as it is still
+	 * referenced, for example by a running analysis. Guarded by the class lock. */
+	private static final List<WeakReference<PGXKnowledgeBase>> liveVersions=
+		new LinkedList<WeakReference<PGXKnowledgeBase>>();
+	/* Held to read content that takes several queries, and exclusively to
+	 * write an update, so such reads never see part of an update. */
+	private static final ReadWriteLock updateLock= new ReentrantReadWriteLock();
+	/* Idle read-only sessions for concurrent queries. Each session has its
+	 * own connection, so concurrent analyses never share session state. */
+	private static final LinkedList<Session> idleSessions= new LinkedList<Session>();
+	
+	/* Maps the first column of a row to a String. */
+	public static final RowMapper<String> FIRST_COLUMN_STRING_MAPPER= new RowMapper<String>() {
+		@Override
+		public String mapRow(ResultSet rs) throws SQLException {
+			return rs.getString(1);
+		}
+	};
+	
+	/* Maps a (marker, chromosome, position, ref, alt) row to a PGXMarker. */
+	static final RowMapper<PGXMarker> MARKER_MAPPER= new RowMapper<PGXMarker>() {
+		@Override
+		public PGXMarker mapRow(ResultSet rs) throws SQLException {
+			return new PGXMarker(rs.getString(1), rs.getString(2),
+				rs.getString(3), rs.getString(4), rs.getString(5));
+		}
+	};
 	
 			
 	/**
@@ -49,13 +115,30 @@ public class PGXDB {
 		conn= connectionToServer();	
 		createSchema(conn);
 		loadTables(conn);
+		deriveTables(conn);
+		setKnowledgeBase(new PGXKnowledgeBase(conn));
 	}
 
 	
+	/**
+	 * Check if the database has been initialized.
+	 * @return true if the tables have been loaded, false otherwise
+	 */
+	public static boolean isInitialized() {
+		return knowledgeBase != null;
+	}
+	
+	
 	/** 
-	 * Close connection to DB.
+	 * Close connection to DB, including all idle query sessions.
 	 */
 	public static void closeConnectionToDB() throws SQLException {
+		synchronized (idleSessions) {
+			for (Session session : idleSessions) {
+				session.close();
+			}
+			idleSessions.clear();
+		}
 		conn.close();
 	}
 	
@@ -98,6 +181,11 @@ public class PGXDB {
 			sql=	"SET IGNORECASE TRUE";
 			s.addBatch(sql);
 			
+			/* Use multiversion concurrency control so that concurrent
+			 * read-only query sessions don't block each other. */
+			sql=	"SET DATABASE TRANSACTION CONTROL MVCC";
+			s.addBatch(sql);
+			
 			/* Create all the tables. These will be populated by CSV Loader. */
 			
 			sql=	"CREATE TABLE " + GENE_MARKER_LIST_TABLE_NAME + " ( " +
@@ -129,6 +217,11 @@ public class PGXDB {
 					")";
 			s.addBatch(sql);
 			
+			/* Variants are looked up by their coordinates. */
+			sql=	"CREATE INDEX marker_coordinates_position_index " +
+					"ON " + MARKER_COORDINATES_TABLE_NAME + " (Chromosome, Position)";
+			s.addBatch(sql);
+			
 			sql=	"CREATE TABLE " + HAPLOTYPE_ACTIVITY_TABLE_NAME + " ( " +
 					"	Gene varchar(20) NOT NULL, " +
 					"	Haplotype varchar(10) NOT NULL, " +
@@ -152,6 +245,22 @@ public class PGXDB {
 					")";
 			s.addBatch(sql);
 			
+			/* One row per marker allele of each haplotype, derived from the
+			 * Marker_info column of haplotype_markers, so that haplotypes can be
+			 * matched with indexed equality rather than substring searches. */
+			sql=	"CREATE TABLE " + HAPLOTYPE_ALLELES_TABLE_NAME + " ( " +
+					"	Gene varchar(20) NOT NULL, " +
+					"	Haplotype_Symbol varchar(100) NOT NULL, " +
+					"	Marker varchar(40) NOT NULL, " +
+					"	Allele varchar(10000) NOT NULL, " +
+					"	PRIMARY KEY (Gene, Haplotype_Symbol, Marker, Allele) " +
+					")";
+			s.addBatch(sql);
+			
+			sql=	"CREATE INDEX haplotype_alleles_marker_index " +
+					"ON " + HAPLOTYPE_ALLELES_TABLE_NAME + " (Gene, Marker, Allele)";
+			s.addBatch(sql);
+			
 			s.executeBatch();
 			s.close();
 		} catch (SQLException e) {
@@ -162,52 +271,362 @@ public class PGXDB {
 	
 	
 	/** 
-	 * Load tables into the DB.
+	 * Load tables into the DB. The tables don't depend on each other, so each
+	 * is loaded concurrently on its own connection.
 	 * @param c The HSQL DB connection
+	 * @throws SQLException if any table failed to load, after all the
+	 *	other tables have finished loading
 	 */
 	private static void loadTables(Connection c) throws SQLException {		
 		/* Load the delimited tables from text files. */
-		CSVLoader loader;
-		try {			
-			loader= new CSVLoader(connectionToServer()); // pass a new connection since it auto-closes it.
-			loader.setSeprator('\t');
-			loader.loadCSV(PGXDB.class.getResourceAsStream(GENE_MARKER_LIST_FILE_PATH),
-				GENE_MARKER_LIST_TABLE_NAME, false);
+		ExecutorService loadExecutor= Executors.newFixedThreadPool(
+			Math.min(TABLE_NAMES.length, Runtime.getRuntime().availableProcessors()));
+		List<Future<Void>> loads= new ArrayList<Future<Void>>();
+		try {
+			for (int i= 0; i < TABLE_NAMES.length; ++i) {
+				final String filePath= TABLE_FILE_PATHS[i];
+				final String tableName= TABLE_NAMES[i];
+				loads.add(loadExecutor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						CSVLoader loader= new CSVLoader(connectionToServer()); // pass a new connection since it auto-closes it.
+						loader.setSeprator('\t');
+						loader.loadCSV(PGXDB.class.getResourceAsStream(filePath), tableName, false);
+						return null;
+					}
+				}));
+			}
+			
+			/* Wait for all tables, reporting each one that failed. */
+			List<String> failedTables= new ArrayList<String>();
+			for (int i= 0; i < loads.size(); ++i) {
+				try {
+					loads.get(i).get();
+				} catch (ExecutionException ee) {
+					failedTables.add(TABLE_NAMES[i]);
+					System.err.println("[" + PGXDB.class.getSimpleName() + "]: Error loading table " +
+						TABLE_NAMES[i] + " from " + TABLE_FILE_PATHS[i] + " " + ee.getCause().toString());
+					ee.getCause().printStackTrace();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while loading tables.", ie);
+				}
+			}
 			
-			loader= new CSVLoader(connectionToServer()); // pass a new connection since it auto-closes it.
-			loader.setSeprator('\t');
-			loader.loadCSV(PGXDB.class.getResourceAsStream(HAPLOTYPE_MARKERS_FILE_PATH),
-				HAPLOTYPE_MARKERS_TABLE_NAME, false);
+			if (!failedTables.isEmpty()) {
+				throw new SQLException("Error loading tables " + failedTables);
+			}
+		} finally {
+			loadExecutor.shutdownNow();
+		}
+	}
+	
+	
+	/**
+	 * Populate the tables derived from the loaded tables.
+	 * @param c The HSQL DB connection
+	 */
+	private static void deriveTables(Connection c) throws SQLException {
+		deriveHaplotypeAlleles(c);
+	}
+	
+	
+	/**
+	 * Split the semicolon-delimited marker=allele list of each haplotype into
+	 * rows of the haplotype_alleles table. Whitespace around markers and
+	 * alleles is ignored.
+	 * @param c The HSQL DB connection
+	 */
+	private static void deriveHaplotypeAlleles(Connection c) throws SQLException {
+		boolean autoCommit= c.getAutoCommit();
+		c.setAutoCommit(false);
+		
+		Statement s= c.createStatement();
+		PreparedStatement ps= c.prepareStatement(
+			"INSERT INTO " + HAPLOTYPE_ALLELES_TABLE_NAME + 
+			" (Gene, Haplotype_Symbol, Marker, Allele) VALUES (?, ?, ?, ?)");
+		try {
+			ResultSet rs= s.executeQuery(
+				"SELECT H.gene, H.haplotype_symbol, H.marker_info " +
+				"FROM " + HAPLOTYPE_MARKERS_TABLE_NAME + " H");
 			
-			loader= new CSVLoader(connectionToServer()); // pass a new connection since it auto-closes it.
-			loader.setSeprator('\t');
-			loader.loadCSV(PGXDB.class.getResourceAsStream(MARKER_COORDINATES_FILE_PATH),
-				MARKER_COORDINATES_TABLE_NAME, false);
+			int count= 0;
+			while (rs.next()) {
+				count += addHaplotypeAlleles(ps, rs.getString(1), rs.getString(2), rs.getString(3));
+			}
+			ps.executeBatch();
+			c.commit();
 			
-			loader= new CSVLoader(connectionToServer()); // pass a new connection since it auto-closes it.
-			loader.setSeprator('\t');
-			loader.loadCSV(PGXDB.class.getResourceAsStream(HAPLOTYPE_ACTIVITY_FILE_PATH),
-				HAPLOTYPE_ACTIVITY_TABLE_NAME, false);
+			log.info("[" + PGXDB.class.getSimpleName() + "]: " + 
+				count + " records derived into " + HAPLOTYPE_ALLELES_TABLE_NAME + " DB table");
+		} catch (SQLException se) {
+			c.rollback();
+			throw se;
+		} finally {
+			ps.close();
+			s.close();
+			c.setAutoCommit(autoCommit);
+		}
+	}
+	
+	
+	/**
+	 * Add the marker alleles of a haplotype to the batch of an insert into
+	 * the haplotype_alleles table.
+	 * @param ps the insert statement, with parameters for all columns in order
+	 * @param gene the gene symbol
+	 * @param haplotypeSymbol the haplotype symbol
+	 * @param markerInfo the semicolon-delimited marker=allele list; may be null
+	 * @return the number of rows added to the batch
+	 */
+	private static int addHaplotypeAlleles(PreparedStatement ps, String gene, String haplotypeSymbol,
+		String markerInfo) throws SQLException {
+		
+		if (markerInfo == null) {
+			return 0;
+		}
+		
+		/* The same marker allele may be listed more than once. */
+		int count= 0;
+		Set<String> markerAlleles= new HashSet<String>();
+		for (String markerAllele : markerInfo.split(";")) {
+			String[] pair= markerAllele.split("=", 2);
+			if (pair.length != 2) {
+				continue;
+			}
+			String marker= pair[0].trim();
+			String allele= pair[1].trim();
+			if (!markerAlleles.add(marker + "=" + allele)) {
+				continue;
+			}
+			
+			ps.setString(1, gene);
+			ps.setString(2, haplotypeSymbol);
+			ps.setString(3, marker);
+			ps.setString(4, allele);
+			ps.addBatch();
+			++count;
+		}
+		
+		return count;
+	}
+	
+	
+	/**
+	 * Apply a versioned update to the DB and make the updated knowledge base
+	 * the current one. Analyses that already hold the previous version keep
+	 * using it unchanged, while new analyses get the updated version.
+	 * 
+	 * Every version still in use first loads the content of the genes
+	 * affected by the update (the genes named by the update and the genes with
+	 * a marker whose coordinates changed), so it no longer needs the DB for
+	 * them, even if it is older than the previous version. The rows are then
+	 * replaced in a single transaction and the new version is created,
+	 * reusing everything the previous version loaded for the other genes.
+	 * @param delta the rows to add or replace
+	 * @return the updated PGXKnowledgeBase
+	 * @throws PGXException if the delta's version is not greater than the current version
+	 * @precondition The database has been initialized.
+	 */
+	public static synchronized PGXKnowledgeBase applyUpdate(PGXKnowledgeBaseDelta delta)
+		throws SQLException, PGXException {
+		
+		PGXKnowledgeBase previous= knowledgeBase;
+		if (delta.getVersion() <= previous.getVersion()) {
+			throw new PGXException("Knowledge base update version " + delta.getVersion() +
+				" is not newer than the current version " + previous.getVersion() + ".");
+		}
+		
+		/* Find the coordinates affected by this update. */
+		List<PGXMarker> updatedCoordinates= new ArrayList<PGXMarker>();
+		for (String marker : delta.getMarkers()) {
+			updatedCoordinates.addAll(query(
+				"SELECT M.marker, M.chromosome, M.position, M.ref, M.alt " +
+				"FROM " + MARKER_COORDINATES_TABLE_NAME + " M " +
+				"WHERE M.marker = ?",
+				MARKER_MAPPER, marker));
+		}
+		for (Object[] row : delta.getMarkerCoordinatesRows()) {
+			updatedCoordinates.add(new PGXMarker((String) row[0], (String) row[1],
+				row[2].toString(), (String) row[3], (String) row[4]));
+		}
+		Set<String> updatedCoordinateKeys= new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		for (PGXMarker pgxm : updatedCoordinates) {
+			updatedCoordinateKeys.add(PGXKnowledgeBase.getCoordinateKey(pgxm.chromosome, pgxm.position));
+		}
+		
+		/* Have every version still in use load what the update changes. A
+		 * version's marker lists can differ from the previous version's, so
+		 * the affected genes are found for each version. */
+		for (Iterator<WeakReference<PGXKnowledgeBase>> it= liveVersions.iterator(); it.hasNext(); ) {
+			PGXKnowledgeBase kb= it.next().get();
+			if (kb == null) {
+				it.remove();
+			} else {
+				kb.load(getAffectedGenes(kb, delta), updatedCoordinates);
+			}
+		}
+		
+		Set<String> updatedGenes= getAffectedGenes(previous, delta);
+		
+		updateLock.writeLock().lock();
+		try {
+			writeUpdate(conn, delta);
+		} finally {
+			updateLock.writeLock().unlock();
+		}
+		
+		setKnowledgeBase(new PGXKnowledgeBase(conn, delta.getVersion(), previous,
+			updatedGenes, updatedCoordinateKeys));
+		
+		log.info("[" + PGXDB.class.getSimpleName() + "]: knowledge base updated to version " +
+			delta.getVersion() + ", " + updatedGenes.size() + " genes changed");
+		
+		return knowledgeBase;
+	}
+	
+	
+	/**
+	 * Get the genes of a knowledge base version affected by an update: the
+	 * genes named by the update and the genes with a marker whose coordinates
+	 * it changes.
+	 * @param kb the knowledge base version
+	 * @param delta the update
+	 * @return a case-insensitive Set of gene symbols
+	 */
+	private static Set<String> getAffectedGenes(PGXKnowledgeBase kb, PGXKnowledgeBaseDelta delta) {
+		Set<String> affectedGenes= new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		affectedGenes.addAll(delta.getGenes());
+		for (String gene : kb.getGenes()) {
+			for (String marker : kb.getMarkers(gene)) {
+				if (delta.getMarkers().contains(marker)) {
+					affectedGenes.add(gene);
+					break;
+				}
+			}
+		}
+		
+		return affectedGenes;
+	}
+	
+	
+	/**
+	 * Get the lock held while reading content that takes several queries.
+	 * Updates are not written while it is held.
+	 * @return the read Lock
+	 */
+	static Lock getReadLock() {
+		return updateLock.readLock();
+	}
+	
+	
+	/**
+	 * Make a knowledge base version the current one, and keep track of it
+	 * while it is in use.
+	 * @param kb the PGXKnowledgeBase
+	 */
+	private static synchronized void setKnowledgeBase(PGXKnowledgeBase kb) {
+		liveVersions.add(new WeakReference<PGXKnowledgeBase>(kb));
+		knowledgeBase= kb;
+	}
+	
+	
+	/**
+	 * Replace or add the rows of an update, and re-derive the haplotype_alleles
+	 * rows of the updated haplotypes, in a single transaction.
+	 * @param c The HSQL DB connection
+	 * @param delta the rows to add or replace
+	 */
+	private static void writeUpdate(Connection c, PGXKnowledgeBaseDelta delta) throws SQLException {
+		boolean autoCommit= c.getAutoCommit();
+		c.setAutoCommit(false);
+		
+		List<PreparedStatement> statements= new ArrayList<PreparedStatement>();
+		try {
+			replaceRows(c, statements, GENE_MARKER_LIST_TABLE_NAME,
+				"Gene = ?", new int[] { 0 }, delta.getGeneMarkerListRows());
+			replaceRows(c, statements, HAPLOTYPE_MARKERS_TABLE_NAME,
+				"Gene = ? AND Haplotype_Symbol = ?", new int[] { 0, 2 }, delta.getHaplotypeMarkersRows());
+			replaceRows(c, statements, MARKER_COORDINATES_TABLE_NAME,
+				"Marker = ? AND Position = ? AND Alt = ?", new int[] { 0, 2, 4 }, delta.getMarkerCoordinatesRows());
+			replaceRows(c, statements, HAPLOTYPE_ACTIVITY_TABLE_NAME,
+				"Gene = ? AND Haplotype = ?", new int[] { 0, 1 }, delta.getHaplotypeActivityRows());
 			
-			loader= new CSVLoader(connectionToServer()); // pass a new connection since it auto-closes it.
-			loader.setSeprator('\t');
-			loader.loadCSV(PGXDB.class.getResourceAsStream(ACTIVITY_TO_METABOLIZER_FILE_PATH),
-				ACTIVITY_TO_METABOLIZER_TABLE_NAME, false);
+			/* Re-derive the marker alleles of the updated haplotypes. */
+			PreparedStatement delete= c.prepareStatement(
+				"DELETE FROM " + HAPLOTYPE_ALLELES_TABLE_NAME + " WHERE Gene = ? AND Haplotype_Symbol = ?");
+			statements.add(delete);
+			PreparedStatement insert= c.prepareStatement(
+				"INSERT INTO " + HAPLOTYPE_ALLELES_TABLE_NAME + 
+				" (Gene, Haplotype_Symbol, Marker, Allele) VALUES (?, ?, ?, ?)");
+			statements.add(insert);
+			int alleleCount= 0;
+			for (Object[] row : delta.getHaplotypeMarkersRows()) {
+				delete.setString(1, (String) row[0]);
+				delete.setString(2, (String) row[2]);
+				delete.executeUpdate();
+				alleleCount += addHaplotypeAlleles(insert, (String) row[0], (String) row[2], (String) row[3]);
+			}
+			if (alleleCount > 0) { // HSQL rejects an empty batch
+				insert.executeBatch();
+			}
 			
-			loader= new CSVLoader(connectionToServer()); // pass a new connection since it auto-closes it.
-			loader.setSeprator('\t');
-			loader.loadCSV(PGXDB.class.getResourceAsStream(PHENOTYPE_TO_METABOLIZER_FILE_PATH),
-				PHENOTYPE_TO_METABOLIZER_TABLE_NAME, false);
+			c.commit();
+		} catch (SQLException se) {
+			c.rollback();
+			throw se;
+		} finally {
+			for (PreparedStatement ps : statements) {
+				ps.close();
+			}
+			c.setAutoCommit(autoCommit);
+		}
+	}
+	
+	
+	/**
+	 * Replace the rows of a table that have the same primary key as the new
+	 * rows, and insert the new rows.
+	 * @param c The HSQL DB connection
+	 * @param statements the list where the prepared statements are added, to be closed by the caller
+	 * @param tableName the table
+	 * @param keyCondition the WHERE condition matching a row's primary key
+	 * @param keyColumns the indexes of the primary key values in each row, in keyCondition order
+	 * @param rows the new rows, with a value for each column in table order
+	 */
+	private static void replaceRows(Connection c, List<PreparedStatement> statements, String tableName,
+		String keyCondition, int[] keyColumns, List<Object[]> rows) throws SQLException {
+		
+		if (rows.isEmpty()) {
+			return;
+		}
+		
+		PreparedStatement delete= c.prepareStatement("DELETE FROM " + tableName + " WHERE " + keyCondition);
+		statements.add(delete);
+		String placeholders= "?";
+		for (int i= 1; i < rows.get(0).length; ++i) {
+			placeholders += ", ?";
+		}
+		PreparedStatement insert= c.prepareStatement("INSERT INTO " + tableName + " VALUES (" + placeholders + ")");
+		statements.add(insert);
+		
+		for (Object[] row : rows) {
+			for (int i= 0; i < keyColumns.length; ++i) {
+				delete.setObject(i + 1, row[keyColumns[i]]);
+			}
+			delete.executeUpdate();
 			
-		} catch (Exception e) {
-			System.err.println("[" + PGXDB.class.getSimpleName() + "]: Error loading tables " + e.toString());
-			e.printStackTrace();
+			for (int i= 0; i < row.length; ++i) {
+				insert.setObject(i + 1, row[i]);
+			}
+			insert.executeUpdate();
 		}
 	}
 	
 	
 	/**
-	 * Return this database's Connection.
+	 * Return this database's Connection, used to load the tables and by
+	 * executeQuery. Not for concurrent use; see query() instead.
 	 * @return this database's Connection; null if connection has not been initialized.
 	 */
 	public static Connection getConnection() {
@@ -215,12 +634,26 @@ public class PGXDB {
 	}
 	
 	
+	/**
+	 * Return the current version of the indexed knowledge base built from
+	 * this database's tables. Hold on to the returned version to get
+	 * consistent results while the database is updated.
+	 * @return the PGXKnowledgeBase; null if the database has not been initialized.
+	 */
+	public static PGXKnowledgeBase getKnowledgeBase() {
+		return knowledgeBase;
+	}
+	
+	
 	/**
 	 * Execute an SQL command.
 	 * @param	sql	The SQL statement to execute.
 	 * @return	ResultSet object corresponding to the SQL statement's output
 	 * @precondition Static Connection conn not null.
+	 * @deprecated Runs on the shared load connection and is not safe for
+	 *	concurrent use; use {@link #query(String, RowMapper, Object...)}.
 	 */
+	@Deprecated
 	public static ResultSet executeQuery(String sql) throws SQLException {
 		Statement s= conn.createStatement();
 		s.execute(sql);
@@ -233,6 +666,74 @@ public class PGXDB {
 	}
 	
 	
+	/**
+	 * Run a parameterized query and map each row of the results.
+	 * The query runs on a pooled read-only session, so it may be called from
+	 * several threads at once. Each session prepares a statement once per
+	 * distinct SQL string and reuses it for later calls, so HSQLDB only
+	 * parses it once per session.
+	 * @param sql the SQL query, with a "?" for each parameter
+	 * @param mapper converts each row to a value
+	 * @param parameters the values bound to the "?" parameters, in order
+	 * @return a List of the mapped rows, in the order returned by the query
+	 * @precondition The database has been initialized.
+	 */
+	public static <T> List<T> query(String sql, RowMapper<T> mapper, Object... parameters) throws SQLException {
+		Session session= borrowSession();
+		try {
+			PreparedStatement ps= session.getPreparedStatement(sql);
+			for (int i= 0; i < parameters.length; ++i) {
+				ps.setObject(i + 1, parameters[i]);
+			}
+			
+			List<T> output= new ArrayList<T>();
+			ResultSet rs= ps.executeQuery();
+			try {
+				while (rs.next()) {
+					output.add(mapper.mapRow(rs));
+				}
+			} finally {
+				rs.close();
+			}
+			
+			return output;
+		} finally {
+			returnSession(session);
+		}
+	}
+	
+	
+	/**
+	 * Get an idle query session, or open a new one if none are idle.
+	 * @return a Session used only by the calling thread until it is returned
+	 */
+	private static Session borrowSession() throws SQLException {
+		synchronized (idleSessions) {
+			if (!idleSessions.isEmpty()) {
+				return idleSessions.removeFirst();
+			}
+		}
+		
+		return new Session(connectionToServer());
+	}
+	
+	
+	/**
+	 * Return a query session for reuse, closing it if enough are idle already.
+	 * @param session the Session from borrowSession()
+	 */
+	private static void returnSession(Session session) throws SQLException {
+		synchronized (idleSessions) {
+			if (idleSessions.size() < MAX_IDLE_SESSIONS) {
+				idleSessions.addFirst(session); // most recently used first, so its statements stay prepared
+				return;
+			}
+		}
+		
+		session.close();
+	}
+	
+	
 	/**
 	 * Print text output for a given query.
 	 * @param	sql	String SQL statement to be executed. Includes all possible SQL statements.
@@ -287,4 +788,51 @@ public class PGXDB {
 		return result;
 	}
 	
+	
+	/**
+	 * A read-only connection to the database and the statements prepared on it.
+	 */
+	private static class Session {
+		
+		private Connection connection;
+		private Map<String, PreparedStatement> preparedStatements= new HashMap<String, PreparedStatement>();
+		
+		public Session(Connection connection) throws SQLException {
+			this.connection= connection;
+			this.connection.setReadOnly(true);
+		}
+		
+		/**
+		 * Get the prepared statement for this SQL, preparing it on first use.
+		 */
+		public PreparedStatement getPreparedStatement(String sql) throws SQLException {
+			PreparedStatement ps= preparedStatements.get(sql);
+			if (ps == null) {
+				ps= connection.prepareStatement(sql);
+				preparedStatements.put(sql, ps);
+			}
+			
+			return ps;
+		}
+		
+		/**
+		 * Close all prepared statements and the connection.
+		 */
+		public void close() throws SQLException {
+			for (PreparedStatement ps : preparedStatements.values()) {
+				ps.close();
+			}
+			preparedStatements.clear();
+			connection.close();
+		}
+	}
+	
+	
+	/**
+	 * Converts the row at the ResultSet's current position to a value.
+	 */
+	public interface RowMapper<T> {
+		T mapRow(ResultSet rs) throws SQLException;
+	}
+	
 }
@@ -1,14 +1,11 @@
 package pgx.localDB;
 
 import NaturalSorting.NaturalOrderComparator;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -17,6 +14,9 @@ import java.util.regex.Pattern;
 import org.apache.commons.lang3.StringUtils;
 import org.ut.biolab.medsavant.shared.appdevapi.DBAnnotationColumns;
 import org.ut.biolab.medsavant.shared.appdevapi.Variant;
+import pgx.localDB.HaplotypeMatcher.DiplotypeCandidate;
+import pgx.localDB.HaplotypeMatcher.HaplotypeDistance;
+import pgx.localDB.PGXDiplotypeCache.DiplotypeCall;
 import pgx.PGXException;
 import pgx.PGXGene;
 import pgx.PGXGenotype;
@@ -34,70 +34,24 @@ public class PGXDBFunctions {
 	public static final String PIPE= "\\|";
 	public static final String GT_SEPARATOR= "[\\|/]";
 	
+	private static final PGXDiplotypeCache DIPLOTYPE_CACHE= new PGXDiplotypeCache();
+	
 	/** 
 	 * Get all genes in the database.
 	 * @return a List of all genes in this DB.
 	 */
 	public static List<String> getGenes() throws SQLException {
-		List<String> genes= new LinkedList<String>();
-		
-		// MUST use single quotes for HyperSQL (hsql) SQL syntax
-		String sql=	"SELECT G.gene " +
-					"FROM gene_marker_list G ";
-		
-		ResultSet rs= PGXDB.executeQuery(sql);
-
-		/* Grab the first element from each row in the results. */
-		int rowCount= 0;
-		while (rs.next()) {
-			List rowTemp= PGXDB.getRowAsList(rs);
-			genes.add((String) rowTemp.get(0));
-
-			rowCount++;
-		}
-		
-		return genes;
+		return PGXDB.getKnowledgeBase().getGenes();
 	}
 	
 	
 	/** 
 	 * Get this gene's semicolon-delimited list of markers.
 	 * @param geneSymbol the gene symbol string (not case sensitive)
-	 * @return a List of markers
+	 * @return an unmodifiable List of markers
 	 */
 	public static List<String> getMarkers(String geneSymbol) throws PGXException, SQLException {
-		List<String> markers;
-		
-		// MUST use single quotes for HyperSQL (hsql) SQL syntax
-		String sql=	"SELECT G.marker_list " +
-					"FROM gene_marker_list G " +
-					"WHERE G.gene = '" + geneSymbol + "' "; 
-		
-		ResultSet rs= PGXDB.executeQuery(sql);
-
-		int rowCount= 0;
-		String markerString= null;
-		while (rs.next()) {
-			/* There should only be a single result from this query. */
-			if (rowCount > 1)
-				throw new PGXException(">1 row found for query: " + sql);
-
-			/* First and only element is the marker liststring, as specified
-			 * in sql above. */
-			List rowTemp= PGXDB.getRowAsList(rs);
-			markerString= (String) rowTemp.get(0);
-
-			rowCount++;
-		}
-		
-		/* Split the marker list on semicolons. Empty list if no markerString */
-		if (markerString != null) {
-			markers= Arrays.asList(markerString.split(";"));
-		} else  {
-			markers= new LinkedList<String>(); // new empty list
-		}
-		
-		return markers;
+		return PGXDB.getKnowledgeBase().getMarkers(geneSymbol);
 	}
 	
 	
@@ -108,6 +62,17 @@ public class PGXDBFunctions {
 	 * @param pg the gene-variants pair object
 	 */
 	public static void assignParentalGenotypes(PGXGene pg) throws SQLException {
+		assignParentalGenotypes(PGXDB.getKnowledgeBase(), pg);
+	}
+	
+	
+	/**
+	 * Assign the maternal and paternal phased genotypes for this gene, using
+	 * this version of the knowledge base.
+	 * @param kb the knowledge base
+	 * @param pg the gene-variants pair object
+	 */
+	public static void assignParentalGenotypes(PGXKnowledgeBase kb, PGXGene pg) throws SQLException {
 		/* Hash of marker, nucleotide (ref/alt) pairs. */
 		Map<String, PGXGenotype> maternalGenotypes= new HashMap<String, PGXGenotype>();
 		Map<String, PGXGenotype> paternalGenotypes= new HashMap<String, PGXGenotype>();
@@ -154,7 +119,7 @@ public class PGXDBFunctions {
 				String key= v.getChromosome() + "_" + v.getStart(); // the underscore is critical; don't delete it
 				String[] refAndAlts= variantMap.get(key);
 				//String currentRsID= (String) v.getColumn(DBAnnotationColumns.DBSNP_TEXT); // creates nulls sometimes, leading to errors.
-				String currentRsID= getMarkerID(v);
+				String currentRsID= getMarkerID(kb, v);
 				int totalDepthOfCoverage= v.getReferenceDepth() + v.getAlternateDepth();
 				
 				maternalGenotypes.put(currentRsID, new PGXGenotype(refAndAlts[maternalGT], false, totalDepthOfCoverage));
@@ -183,11 +148,25 @@ public class PGXDBFunctions {
 	 *	like "CYP2C19*1/*17"; "unknown" if this gene has no * diplotypes or if 
 	 *  the genotypes are unphased.
 	 */
-	public static String getDiplotype(PGXGene pg) throws PGXException, SQLException {	
+	public static String getDiplotype(PGXGene pg) throws PGXException, SQLException {
+		return getDiplotype(PGXDB.getKnowledgeBase(), pg);
+	}
+	
+	
+	/**
+	 * Return a string of the diplotype for this gene-variants pair using star
+	 * (*) nomenclature, using this version of the knowledge base.
+	 * @param kb the knowledge base
+	 * @param pg the gene-variants pair object
+	 * @return a String of the diplotype in the form "*1/*17"; "unknown" if
+	 *	this gene has no * diplotypes or if the genotypes are unphased and
+	 *	consistent with more than one diplotype.
+	 */
+	public static String getDiplotype(PGXKnowledgeBase kb, PGXGene pg) throws PGXException, SQLException {	
 		String diplotype= "UNKNOWN";
 		
 		/* Assign the phased parental genotypes to be used for haplotype translation. */
-		assignParentalGenotypes(pg);
+		assignParentalGenotypes(kb, pg);
 
 		/* Get the genotypes even if they are not phased. The UI should display
 		* the phased status of this gene (PGXGene), so these can be displayed
@@ -195,38 +174,36 @@ public class PGXDBFunctions {
 		Map<String, PGXGenotype> maternalGenotypes= pg.getMaternalGenotypes();
 		Map<String, PGXGenotype> paternalGenotypes= pg.getPaternalGenotypes();
 		
-		/* Get haplotypes if genotypes are phased. */
-		if (pg.isPhased()) {		
-			/* Get the haplotypes and check for novel ones (ie. no match found).
-			 * If a haplotype is novel, output "UNKNOWN" and then append the most
-			 * similar haplotype. */
-			pg.setMaternalHaplotype(getHaplotype(pg.getGene(), maternalGenotypes));
-			String maternalHaplotype= new String(pg.getMaternalHaplotype()); // create a copy, since we're going to modify the string
-			if (maternalHaplotype.equals(UNKNOWN_HAPLOTYPE)) {
-				List<String> maternalSimilar= getSimilarHaplotypes(
-					pg.getGene(), maternalGenotypes, SIMILAR_HAPLOTYPE_DEPTH);
-				if (maternalSimilar.size() > 0) {
-					maternalHaplotype += " (similar to " + StringUtils.join(maternalSimilar, ',') + ")";
-				}
+		/* Get haplotypes if genotypes are phased. Calls for genotypes seen in
+		 * another patient are reused from the diplotype cache. */
+		if (pg.isPhased()) {
+			long geneVersion= kb.getGeneVersion(pg.getGene());
+			String maternalSignature= PGXDiplotypeCache.getSignature(maternalGenotypes);
+			String paternalSignature= PGXDiplotypeCache.getSignature(paternalGenotypes);
+			DiplotypeCall call= DIPLOTYPE_CACHE.get(pg.getGene(), geneVersion, maternalSignature, paternalSignature);
+			if (call == null) {
+				call= callDiplotype(kb, pg.getGene(), maternalGenotypes, paternalGenotypes);
+				DIPLOTYPE_CACHE.put(pg.getGene(), geneVersion, maternalSignature, paternalSignature, call);
 			}
-
-			pg.setPaternalHaplotype(getHaplotype(pg.getGene(), paternalGenotypes));
-			String paternalHaplotype= new String(pg.getPaternalHaplotype()); // create a copy, since we're going to modify the string
-			if (paternalHaplotype.equals(UNKNOWN_HAPLOTYPE)) {
-				List<String> paternalSimilar= getSimilarHaplotypes(
-					pg.getGene(), paternalGenotypes, SIMILAR_HAPLOTYPE_DEPTH);
-				if (paternalSimilar.size() > 0) {
-					 paternalHaplotype += " (similar to " + StringUtils.join(paternalSimilar, ',') + ")";
-				}
+			
+			pg.setMaternalHaplotype(call.getMaternalHaplotype());
+			pg.setPaternalHaplotype(call.getPaternalHaplotype());
+			diplotype= call.getDiplotype();
+		} else {
+			/* Resolve unphased genotypes to the candidate diplotypes. If only
+			 * one diplotype can be constructed, it is the diplotype call, but
+			 * its haplotypes can't be assigned a parent of origin, so the
+			 * maternal and paternal haplotypes stay unassigned. */
+			List<DiplotypeCandidate> candidates= getDiplotypeCandidates(kb, pg);
+			List<String> candidateDiplotypes= new ArrayList<String>();
+			for (DiplotypeCandidate dc : candidates) {
+				candidateDiplotypes.add(dc.getDiplotype());
+			}
+			pg.setDiplotypeCandidates(candidateDiplotypes);
+			
+			if (candidates.size() == 1) {
+				diplotype= candidates.get(0).getDiplotype();
 			}
-
-			/* Create a list of diplotypes and sort these naturally/lexicographically
-			 * so that diplotypes appear as "*1/*17" instead of "*17/*1". */
-			List<String> haplotypes= new ArrayList<String>();
-			haplotypes.add(maternalHaplotype);
-			haplotypes.add(paternalHaplotype);
-			Collections.sort(haplotypes, new NaturalOrderComparator());
-			diplotype= haplotypes.get(0) + "/" + haplotypes.get(1);
 		}
 		
 		return diplotype;
@@ -234,118 +211,106 @@ public class PGXDBFunctions {
 	
 	
 	/**
-	 * Convert marker-genotype pairs into a * nomenclature haplotype for this gene.
+	 * Get every diplotype consistent with this gene's unphased genotypes.
+	 * @param pg the gene-variants pair object
+	 * @return a List of DiplotypeCandidates, ranked
+	 * @precondition The maternal and paternal genotype maps in pg have been set.
+	 */
+	public static List<DiplotypeCandidate> getDiplotypeCandidates(PGXGene pg) throws SQLException {
+		return getDiplotypeCandidates(PGXDB.getKnowledgeBase(), pg);
+	}
+	
+	
+	/**
+	 * Get every diplotype consistent with this gene's unphased genotypes,
+	 * using this version of the knowledge base. The maternal and paternal
+	 * genotypes are treated as an unordered pair at each marker.
+	 * @param kb the knowledge base
+	 * @param pg the gene-variants pair object
+	 * @return a List of DiplotypeCandidates, ranked by the number of
+	 *	ungenotyped markers their haplotypes rely on and then in natural order;
+	 *	empty if no pair of known haplotypes is consistent
+	 * @precondition The maternal and paternal genotype maps in pg have been set.
+	 */
+	public static List<DiplotypeCandidate> getDiplotypeCandidates(PGXKnowledgeBase kb, PGXGene pg)
+		throws SQLException {
+		
+		return kb.getHaplotypeMatcher(pg.getGene()).getDiplotypeCandidates(
+			pg.getMaternalGenotypes(), pg.getPaternalGenotypes());
+	}
+	
+	
+	/**
+	 * Get the shared cache of diplotype calls.
+	 * @return the PGXDiplotypeCache
+	 */
+	public static PGXDiplotypeCache getDiplotypeCache() {
+		return DIPLOTYPE_CACHE;
+	}
+	
+	
+	/**
+	 * Call the haplotypes and diplotype for a pair of phased parental genotypes.
+	 * @param kb the knowledge base
 	 * @param gene the gene name/symbol
-	 * @param markerGenotypePairs a hash of marker-genotype pairs
-	 * @return a string representing the * nomenclature haplotype for this hash, empty string if no haplotype found
-	 * @throws PGXException
-	 * @throws SQLException 
+	 * @param maternalGenotypes a hash of maternal marker-genotype pairs
+	 * @param paternalGenotypes a hash of paternal marker-genotype pairs
+	 * @return the DiplotypeCall
 	 */
-	private static String getHaplotype(String gene, Map<String, PGXGenotype> markerGenotypePairs)
+	private static DiplotypeCall callDiplotype(PGXKnowledgeBase kb, String gene,
+		Map<String, PGXGenotype> maternalGenotypes, Map<String, PGXGenotype> paternalGenotypes)
 		throws PGXException, SQLException {
 		
-		Map<String, String> markerRef= getMarkerRefMap(gene);
-		
-		String sql=	"SELECT H.haplotype_symbol " +
-					"FROM haplotype_markers H " +
-					"WHERE gene = '" + gene + "' ";
-		
-		/* Iterate over the markers and construct a query for the local DB.
-		 * Marker order doesn't affect the query. */
-		for (String marker : getMarkers(gene)) {
-			
-			/* If the marker was found, use the reported variant call, otherwise
-			 * marker is missing. */
-			if (markerGenotypePairs.containsKey(marker)) {
-				sql +=	"	AND marker_info LIKE '%" + marker + "=" + markerGenotypePairs.get(marker).getGenotype() +"%' ";
+		/* Get the haplotypes and check for novel ones (ie. no match found).
+		 * If a haplotype is novel, output "UNKNOWN" and then append the most
+		 * similar haplotype. */
+		String maternalSymbol= getHaplotype(kb, gene, maternalGenotypes);
+		String maternalHaplotype= maternalSymbol;
+		if (maternalHaplotype.equals(UNKNOWN_HAPLOTYPE)) {
+			List<String> maternalSimilar= getSimilarHaplotypes(
+				kb, gene, maternalGenotypes, SIMILAR_HAPLOTYPE_DEPTH);
+			if (maternalSimilar.size() > 0) {
+				maternalHaplotype += " (similar to " + StringUtils.join(maternalSimilar, ',') + ")";
 			}
-				
-		}		
-		
-		/* Get all * alleles that can be retrieved with this query (>= 1). */
-		List<String> allPossibleAlleles= new ArrayList<String>();
-		try {
-			ResultSet rs= PGXDB.executeQuery(sql);
-			
-			while (rs.next()) {
-				// only grab the first column because we're only SELECTing it
-				// above in the SQL statement
-				allPossibleAlleles.add((String) PGXDB.getRowAsList(rs).get(0));
+		}
+
+		String paternalSymbol= getHaplotype(kb, gene, paternalGenotypes);
+		String paternalHaplotype= paternalSymbol;
+		if (paternalHaplotype.equals(UNKNOWN_HAPLOTYPE)) {
+			List<String> paternalSimilar= getSimilarHaplotypes(
+				kb, gene, paternalGenotypes, SIMILAR_HAPLOTYPE_DEPTH);
+			if (paternalSimilar.size() > 0) {
+				 paternalHaplotype += " (similar to " + StringUtils.join(paternalSimilar, ',') + ")";
 			}
-		} catch (SQLException se) {
-			se.printStackTrace();
 		}
-		
-		/* Sort the list of haplotypes naturally/lexicographically. */
-		Collections.sort(allPossibleAlleles, new NaturalOrderComparator());
-		String haplotype= StringUtils.join(allPossibleAlleles, ',');
-		if (haplotype.equals(""))
-			haplotype= UNKNOWN_HAPLOTYPE;
-		
-		return haplotype;
+
+		/* Create a list of diplotypes and sort these naturally/lexicographically
+		 * so that diplotypes appear as "*1/*17" instead of "*17/*1". */
+		List<String> haplotypes= new ArrayList<String>();
+		haplotypes.add(maternalHaplotype);
+		haplotypes.add(paternalHaplotype);
+		Collections.sort(haplotypes, new NaturalOrderComparator());
+		
+		return new DiplotypeCall(maternalSymbol, paternalSymbol, haplotypes.get(0) + "/" + haplotypes.get(1));
 	}
 	
 	
 	/**
-	 * Convert marker-genotype pairs into a * nomenclature haplotype for this gene with optional inference.
+	 * Convert marker-genotype pairs into a * nomenclature haplotype for this gene.
+	 * @param kb the knowledge base
 	 * @param gene the gene name/symbol
 	 * @param markerGenotypePairs a hash of marker-genotype pairs
-	 * @param assumeRef if true and a marker is missing, assumes reference nucleotide. If false, marker is left blank.
 	 * @return a string representing the * nomenclature haplotype for this hash, empty string if no haplotype found
 	 * @throws PGXException
 	 * @throws SQLException 
 	 */
-	private static String getHaplotypeWithAssumption(String gene, Map<String, PGXGenotype> markerGenotypePairs, boolean assumeRef)
+	private static String getHaplotype(PGXKnowledgeBase kb, String gene, Map<String, PGXGenotype> markerGenotypePairs)
 		throws PGXException, SQLException {
 		
-		Map<String, String> markerRef= getMarkerRefMap(gene);
-		
-		String sql=	"SELECT H.haplotype_symbol " +
-					"FROM haplotype_markers H " +
-					"WHERE gene = '" + gene + "' ";
-		
-		/* Iterate over the markers and construct a query for the local DB.
-		 * Marker order doesn't affect the query. */
-		for (String marker : getMarkers(gene)) {
-			
-			/* ***VERY IMPORTANT***
-			 * If the marker was found, use the reported variant call. If it is
-			 * NOT found, ASSUME it is a reference call, and append a ref call
-			 * to the marker list "profile". Assuming it's a ref call is goverened
-			 * by the argument assumeRef. Ideally, this would only be true for 
-			 * WGS data, but it's a parameter that can be toggled regardless of 
-			 * the data source. Adding reference call information ensures
-			 * specificity. For example, if a marker is missing and it is one 
-			 * marker off from being called a specific haplotype, it is not a
-			 * match. Filling in missing markers with reference calls makes 
-			 * this difference. */
-			if (markerGenotypePairs.containsKey(marker)) {
-				sql +=	"	AND marker_info LIKE '%" + marker + "=" + markerGenotypePairs.get(marker).getGenotype() +"%' ";
-			} else if (assumeRef && markerRef.containsKey(marker)) { // some markers don't have a ref call, ignore for now
-				sql +=	"	AND marker_info LIKE '%" + marker + "=" + markerRef.get(marker) +"%' ";
-				
-				// Add this marker to the list of inferred markers for this haplotype
-				markerGenotypePairs.put(marker, new PGXGenotype(markerRef.get(marker), true, 0));
-			}
-				
-		}		
-		
-		/* Get all * alleles that can be retrieved with this query (>= 1). */
-		List<String> allPossibleAlleles= new ArrayList<String>();
-		try {
-			ResultSet rs= PGXDB.executeQuery(sql);
-			
-			while (rs.next()) {
-				// only grab the first column because we're only SELECTing it
-				// above in the SQL statement
-				allPossibleAlleles.add((String) PGXDB.getRowAsList(rs).get(0));
-			}
-		} catch (SQLException se) {
-			se.printStackTrace();
-		}
-		
-		/* Sort the list of haplotypes naturally/lexicographically. */
-		Collections.sort(allPossibleAlleles, new NaturalOrderComparator());
+		/* Get all * alleles that match the genotypes of this gene's markers
+		 * (>= 1). The matches are already sorted naturally/lexicographically. */
+		List<String> allPossibleAlleles=
+			kb.getHaplotypeMatcher(gene).getMatchingHaplotypesForGenotypes(markerGenotypePairs);
 		String haplotype= StringUtils.join(allPossibleAlleles, ',');
 		if (haplotype.equals(""))
 			haplotype= UNKNOWN_HAPLOTYPE;
@@ -355,147 +320,95 @@ public class PGXDBFunctions {
 	
 	
 	/**
-	 * Assign reference genotypes to missing markers.
+	 * Get the * nomenclature haplotypes that are most similar to the marker-genotype pairs.
+	 * 
+	 * A haplotype is similar at depth d if it matches the remaining markers
+	 * after dropping at least 1 and at most d markers, keeping at least one.
+	 * That is the case if it differs at no more than d markers, so every
+	 * haplotype is scored once by its number of differing markers, rather
+	 * than matching every sublist of markers. Depths are tried in increasing
+	 * order until more than one similar haplotype is found.
+	 * @param kb the knowledge base
 	 * @param gene the gene name/symbol
 	 * @param markerGenotypePairs a hash of marker-genotype pairs
-	 * @return a string representing the * nomenclature haplotype for this hash, empty string if no haplotype found
+	 * @param remove the maximum number of markers to remove to find similar haplotypes
+	 * @return a List of possible haplotypes that are similar.
 	 * @throws PGXException
-	 * @throws SQLException
+	 * @throws SQLException 
 	 */
-	private static void assignReferenceGenotypes(String gene, Map<String, PGXGenotype> markerGenotypePairs)
+	private static List<String> getSimilarHaplotypes(PGXKnowledgeBase kb, String gene, Map<String, PGXGenotype> markerGenotypePairs, int remove)
 		throws PGXException, SQLException {
 		
-		Map<String, String> markerRef= getMarkerRefMap(gene);
+		/* NOTE: in the current version of this class, reference genotypes 
+		 * may have been added to the markerGenotypePairs (they're not 
+		 * explicitly exlcuded by checking the marker inferrence booleand.
+		 * This can be modified later by on including genotypes that are
+		 * "observed" and not "inferred". */
+		Map<String, String> markerAlleles= getGeneMarkerAlleles(kb, gene, markerGenotypePairs);
+		List<HaplotypeDistance> distances= kb.getHaplotypeMatcher(gene).getDistances(markerAlleles);
 		
-		/* Iterate over the markers and add inferred reference genotypes if they
-		 * are absent from the variant data. */
-		for (String marker : getMarkers(gene)) {
-			if (!markerGenotypePairs.containsKey(marker) &&
-				markerRef.containsKey(marker)) { // some markers don't have a ref call, ignore for now
-				
-				// Add this marker to the list of inferred markers for this haplotype
-				markerGenotypePairs.put(marker, new PGXGenotype(markerRef.get(marker), true, 0));
+		/* Genotypes of other markers of this gene can also be dropped, but at
+		 * least one genotype must be kept. */
+		List<String> output= new ArrayList<String>();
+		for (int depth= 1; depth <= remove; ++depth) {
+			int maxDropped= Math.min(depth, markerAlleles.size() - 1);
+			output.clear();
+			for (HaplotypeDistance hd : distances) {
+				if (Math.max(1, hd.getDistance()) <= maxDropped) {
+					output.add(hd.getHaplotype());
+				}
 			}
-				
-		}		
+			
+			/* If this depth found a marker, stop search. Otherwise, continue. */
+			if (output.size() > 1) {
+				break;
+			}
+		}
 		
-	}
+		/* Sort the list of haplotypes naturally/lexicographically. */
+		Collections.sort(output, new NaturalOrderComparator());
+		
+		return output;	
+	}	
 	
 	
 	/**
-	 * Return a map of reference nucleotides keyed by marker ID, for this gene.
-	 * @param gene The gene symbol
-	 * @return a Map of reference nucleotides keyed by marker ID
+	 * Get the haplotypes of this gene closest to the marker-genotype pairs,
+	 * along with the markers by which they differ.
+	 * @param kb the knowledge base
+	 * @param gene the gene name/symbol
+	 * @param markerGenotypePairs a hash of marker-genotype pairs
+	 * @param maxDistance the maximum number of differing markers
+	 * @return a List of the closest haplotypes, in natural order; empty if
+	 *	none differ by at most maxDistance markers
 	 */
-	private static Map<String, String> getMarkerRefMap(String gene) throws PGXException, SQLException {
-		Map<String, String> output= new HashMap<String, String>();
+	public static List<HaplotypeDistance> getNearestHaplotypes(PGXKnowledgeBase kb, String gene,
+		Map<String, PGXGenotype> markerGenotypePairs, int maxDistance) throws SQLException {
 		
-		List<String> markerList= getMarkers(gene);
-		String sql;
-		for (String marker : markerList) {
-			sql=	"SELECT M.ref " +
-					"FROM marker_coordinates M " +
-					"WHERE M.marker = '" + marker + "' ";	
-			ResultSet rs= PGXDB.executeQuery(sql);
-			
-			/* Just get the first line. According to the Java API:
-			 * "A ResultSet cursor is initially positioned before the first row;
-			 * the first call to the method next makes the first row the current row".
-			 * NOTE: not all markers have corresponding coordinates or ref/alt calls. */
-			if (rs.next())
-				output.put(marker, (String) PGXDB.getRowAsList(rs).get(0));
-		}
-				
-		return output;
+		return kb.getHaplotypeMatcher(gene).getNearestHaplotypes(
+			getGeneMarkerAlleles(kb, gene, markerGenotypePairs), maxDistance);
 	}
 	
 	
 	/**
-	 * Get the * nomenclature haplotypes that are most similar to the marker-genotype pairs.
+	 * Get the alleles of this gene's markers from the marker-genotype pairs.
+	 * @param kb the knowledge base
 	 * @param gene the gene name/symbol
 	 * @param markerGenotypePairs a hash of marker-genotype pairs
-	 * @param remove the maximum number of markers to remove to find similar haplotypes
-	 * @return a List of possible haplotypes that are similar.
-	 * @throws PGXException
-	 * @throws SQLException 
+	 * @return a Map of alleles keyed by marker, in marker order
 	 */
-	private static List<String> getSimilarHaplotypes(String gene, Map<String, PGXGenotype> markerGenotypePairs, int remove)
-		throws PGXException, SQLException {
+	private static Map<String, String> getGeneMarkerAlleles(PGXKnowledgeBase kb, String gene,
+		Map<String, PGXGenotype> markerGenotypePairs) {
 		
-		/* Initialize the output list. */
-		Set<String> similarAlleles= new HashSet<String>();
-		
-		/* Get the reference calls for all markers for this gene. */
-		Map<String, String> markerRef= getMarkerRefMap(gene);
-		
-		/* Create a List of Pair objects from all the markers. I need a list 
-		 * because that's what my sublists method takes. */
-		List<Pair> originalMarkers= new ArrayList<Pair>();
-		for (String marker : markerGenotypePairs.keySet()) {
-			/* NOTE: in the current version of this class, reference genotypes 
-			 * may have been added to the markerGenotypePairs (they're not 
-			 * explicitly exlcuded by checking the marker inferrence booleand.
-			 * This can be modified later by on including genotypes that are
-			 * "observed" and not "inferred". */
-			originalMarkers.add(new Pair(marker, markerGenotypePairs.get(marker).getGenotype()));
-		}
-		
-		/* Create all possible sublists of this original marker list, iterating 
-		 * through specified depth. Then try to find a most similar haplotype.
-		 * This means that if the specified max number of markers to remove was 
-		 * 3, first try to remove 1 and find a match, then try 2, then 3. If a 
-		 * similar haplotype is found by removing 1 marker, it's more similar
-		 * than those that can only be found after removing 3. */
-		boolean found= false;
-		for (int depth= 0; depth <= remove && !found; ++depth) {
-			Set<List<Pair>> similarMarkers= Sublists.Sublists.sublists(originalMarkers, depth);
-		
-			/* For each of the sublists, look for a matching haplotype. */
-			for (List<Pair> lop : similarMarkers) { // "lop" = "list of pairs"
-				/* Create the query beginning. */
-				String sql=	"SELECT H.haplotype_symbol " +
-							"FROM haplotype_markers H " +
-							"WHERE gene = '" + gene + "' ";
-				
-				// Convert the List<Pair> back to a Map<String, String>
-				Map<String, String> sublistMap= convertListOfPairsToMap(lop);
-				
-				/* Iterate over the markers and construct a query for the local DB.
-				 * Marker order doesn't affect the query. */
-				for (String marker : getMarkers(gene)) {			
-					if (sublistMap.containsKey(marker)) {
-						sql +=	"	AND marker_info LIKE '%" + marker + "=" + sublistMap.get(marker) +"%' ";
-					}
-				}
-				
-				/* Get all * alleles that can be retrieved with this query (>= 1). */
-				try {
-					ResultSet rs= PGXDB.executeQuery(sql);
-
-					while (rs.next()) {
-						// only grab the first column because we're only SELECTing it
-						// above in the SQL statement
-						similarAlleles.add((String) PGXDB.getRowAsList(rs).get(0));
-					}
-				} catch (SQLException se) {
-					se.printStackTrace();
-				}
-			}
-			
-			/* If this depth found a marker, stop search. Otherwise, continue. */
-			if (similarAlleles.size() > 1) {
-				found= true;
-				System.out.println("Similar haplotype found at depth = " + depth); // Testing
+		Map<String, String> markerAlleles= new LinkedHashMap<String, String>();
+		for (String marker : kb.getMarkers(gene)) {
+			if (markerGenotypePairs.containsKey(marker)) {
+				markerAlleles.put(marker, markerGenotypePairs.get(marker).getGenotype());
 			}
 		}
 		
-		/* Sort the list of haplotypes naturally/lexicographically. */
-		List<String> output= new ArrayList<String>();
-		output.addAll(similarAlleles);
-		Collections.sort(output, new NaturalOrderComparator());
-		
-		return output;	
-	}	
+		return markerAlleles;
+	}
 	
 	
 	/**
@@ -506,22 +419,23 @@ public class PGXDBFunctions {
 	 * 
 	 */
 	public static String getActivities(String gene, String haplotype) {
+		return getActivities(PGXDB.getKnowledgeBase(), gene, haplotype);
+	}
+	
+	
+	/**
+	 * Get the activity for each haplotype, using this version of the knowledge base.
+	 * @param kb the knowledge base
+	 * @param gene The gene symbol
+	 * @param haplotype The haplotype symbol
+	 * @return the activity value, null if it doesn't exist
+	 */
+	public static String getActivities(PGXKnowledgeBase kb, String gene, String haplotype) {
 		String activity= null;
 		
-		String sql=	"SELECT activity_phenotype " +
-					"FROM haplotype_activity " +
-					"WHERE gene = '" + gene + "' " +
-					"	AND haplotype = '" + haplotype + "' ";
-		
 		/* There should only be a single activity value for this haplotype. */
 		try {
-			ResultSet rs= PGXDB.executeQuery(sql);
-
-			while (rs.next()) {
-				// only grab the first column because we're only SELECTing it
-				// above in the SQL statement
-				activity= (String) PGXDB.getRowAsList(rs).get(0);
-			}
+			activity= kb.getActivity(gene, haplotype);
 		} catch (SQLException se) {
 			se.printStackTrace();
 		}
@@ -534,30 +448,26 @@ public class PGXDBFunctions {
 	 * Get the metabolizer class for a diplotype.
 	 * @param hap1Activity Activity phenotype for haplotype 1; haplotype order is irrelevant
 	 * @param hap2Activity Activity phenotype for haplotype 2; haplotype order is irrelevant
-	 * @return the metabolizer class, null if it doesn't exist
+	 * @return the metabolizer class, "unknown" if it doesn't exist
 	 * 
 	 */
 	public static String getMetabolizerClass(String hap1Activity, String hap2Activity) {
-		String metabolizer= "unknown";
-		
-		String sql=	"SELECT metabolizer_class " +
-					"FROM phenotype_to_metabolizer " +
-					"WHERE (haplotype_1_activity = '" + hap1Activity + "' " +
-					"	AND haplotype_2_activity = '" + hap2Activity + "') " +
-					"	OR (haplotype_1_activity = '" + hap2Activity + "' " +
-					"	AND haplotype_2_activity = '" + hap1Activity + "') ";
-		
-		/* There should only be a single activity value for this haplotype. */
-		try {
-			ResultSet rs= PGXDB.executeQuery(sql);
-
-			while (rs.next()) {
-				// only grab the first column because we're only SELECTing it
-				// above in the SQL statement
-				metabolizer= (String) PGXDB.getRowAsList(rs).get(0);
-			}
-		} catch (SQLException se) {
-			se.printStackTrace();
+		return getMetabolizerClass(PGXDB.getKnowledgeBase(), hap1Activity, hap2Activity);
+	}
+	
+	
+	/**
+	 * Get the metabolizer class for a diplotype, using this version of the
+	 * knowledge base.
+	 * @param kb the knowledge base
+	 * @param hap1Activity Activity phenotype for haplotype 1; haplotype order is irrelevant
+	 * @param hap2Activity Activity phenotype for haplotype 2; haplotype order is irrelevant
+	 * @return the metabolizer class, "unknown" if it doesn't exist
+	 */
+	public static String getMetabolizerClass(PGXKnowledgeBase kb, String hap1Activity, String hap2Activity) {
+		String metabolizer= kb.getMetabolizerClass(hap1Activity, hap2Activity);
+		if (metabolizer == null) {
+			metabolizer= "unknown";
 		}
 		
 		return metabolizer;
@@ -595,47 +505,6 @@ public class PGXDBFunctions {
 	}
 	
 	
-	/**
-	 * Inner class to represent gene and marker pairs as a single object.
-	 */
-	private static class Pair {
-		
-		String genotype;
-		String marker;
-		
-		public Pair(String marker, String genotype) {
-			this.marker= marker;
-			this.genotype= genotype;
-		}
-	}
-	
-	
-	/**
-	 * Convert a List<Pair> to Map<String, String> with marker as key genotype as value.
-	 * Intended to be a private method for convenience.
-	 */
-	private static Map<String, String> convertListOfPairsToMap(List<Pair> lop) {
-		Map<String, String> map= new HashMap<String, String>();
-		for (Pair p : lop) {
-			map.put(p.marker, p.genotype);
-		}
-		return map;
-	}
-
-	
-	/**
-	 * Get a List of markers that are absent from the sublist but present in the original.
-	 */
-	private static List<String> getOmitted(Map<String, String> original, Map<String, String> sublist) {
-		List<String> omitted= new ArrayList<String>();
-		for (String key : original.keySet()) {
-			if (!sublist.containsKey(key))
-				omitted.add(key);
-		}
-		return omitted;
-	}
-	
-	
 	/**
 	 * Inner class to represent PGx markers.
 	 */
@@ -659,29 +528,10 @@ public class PGXDBFunctions {
 	/**
 	 * Return a map of all PGx markers, for this gene.
 	 * @param gene The gene symbol
-	 * @return a Map of PGXMarker objects keyed by markerID
+	 * @return an unmodifiable Map of PGXMarker objects keyed by markerID
 	 */
 	public static Map<String, PGXMarker> getMarkerInfoMap(String gene) throws PGXException, SQLException {
-		Map<String, PGXMarker> output= new HashMap<String, PGXMarker>();
-		
-		List<String> markerList= getMarkers(gene);
-		Collections.sort(markerList); // sort the list of markers
-		
-		String sql;
-		for (String marker : markerList) {
-			sql=	"SELECT M.chromosome, M.position, M.ref, M.alt " +
-					"FROM marker_coordinates M " +
-					"WHERE M.marker = '" + marker + "' ";	
-			ResultSet rs= PGXDB.executeQuery(sql);
-			
-			if (rs.next()) {
-				List row= PGXDB.getRowAsList(rs);
-				output.put(marker, new PGXMarker(marker, (String) row.get(0),
-					(String) row.get(1), (String) row.get(2), (String) row.get(3)));
-			}
-		}
-				
-		return output;
+		return PGXDB.getKnowledgeBase().getMarkerInfo(gene);
 	}
 	
 	
@@ -700,48 +550,32 @@ public class PGXDBFunctions {
 	 * @return the marker ID String; null if it doesn't exist
 	 */
 	public static String getMarkerID(Variant var) throws SQLException {
-		String output= null;
-		
-		String sql;
-		sql=	"SELECT M.marker " +
-				"FROM marker_coordinates M " + 
-				"WHERE M.chromosome = '" + var.getChromosome() + "' " +
-				"	AND M.position = " + var.getStart() + " ";
-		ResultSet rs= PGXDB.executeQuery(sql);
-
-		if (rs.next()) {
-			List row= PGXDB.getRowAsList(rs);
-			output= (String) row.get(0);
-		}
-				
-		return output;
+		return getMarkerID(PGXDB.getKnowledgeBase(), var);
+	}
+	
+	
+	/**
+	 * Return a the marker ID for the variant, using this version of the
+	 * knowledge base.
+	 * @param kb the knowledge base
+	 * @param var the variant
+	 * @return the marker ID String; null if it doesn't exist
+	 */
+	public static String getMarkerID(PGXKnowledgeBase kb, Variant var) throws SQLException {
+		return kb.getMarkerID(var.getChromosome(), var.getStart());
 	}
 	
 	
 	/**
 	 * Return a list of Pubmed IDs for the specified genes.
 	 * @param gene The gene symbol
-	 * @return A list of the pmIDs. Empty list if gene not found.
+	 * @return An unmodifiable list of the pmIDs. Empty list if gene not found.
 	 */
 	public static List<String> getPubMedIDs(String gene) {
 		List<String> pmIDs= new ArrayList<String>();
 		
-		String sql;
-		
-		sql=	"SELECT DISTINCT(pubmed_id) " +
-				"FROM haplotype_activity " +
-				"WHERE gene = '" + gene + "' ";
-		
-		/* There should only be a single pubmed ID for this haplotype. */
 		try {
-			ResultSet rs= PGXDB.executeQuery(sql);
-
-			while (rs.next()) {
-				// only grab the first column because we're only SELECTing it
-				// above in the SQL statement
-				String pmidString= (String) PGXDB.getRowAsList(rs).get(0);
-				pmIDs= Arrays.asList(pmidString.split(";"));
-			}
+			pmIDs= PGXDB.getKnowledgeBase().getPubMedIDs(gene);
 		} catch (SQLException se) {
 			se.printStackTrace();
 		}
@@ -1,10 +1,18 @@
 package pgx.localDB;
 
+import NaturalSorting.NaturalOrderComparator;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import pgx.PGXGene;
+import pgx.PGXGenotype;
+import pgx.localDB.HaplotypeMatcher.DiplotypeCandidate;
 
 /**
  * Test concepts in the pharmacogenomics database in this class.
@@ -13,6 +21,15 @@ import java.util.List;
  */
 public class PGXDBTests {
 	
+	/* Maps each row to a List of its values, as they are stored in the DB. */
+	private static final PGXDB.RowMapper<List<Object>> ROW_AS_LIST_MAPPER= new PGXDB.RowMapper<List<Object>>() {
+		@Override
+		public List<Object> mapRow(ResultSet rs) throws SQLException {
+			return PGXDB.getRowAsList(rs);
+		}
+	};
+	
+	
 	/** 
 	 * Run the tests.
 	 * To run this from NetBeans, right click on the class and select "Run File".
@@ -32,6 +49,8 @@ public class PGXDBTests {
 		getMarkerPositionsForGene("CYP2C19");
 		getMetabolizer();
 		getPubmedIDs();
+		getUnphasedDiplotypes();
+		compareHaplotypeMatcher();
 		
 		// Specific tests
 		//printSQLResults("SELECT H.haplotype_symbol FROM haplotype_markers H WHERE gene = 'CYP2C19' 	AND marker_info LIKE '%rs4244285=G%' 	AND marker_info LIKE '%rs4986893=G%' 	AND marker_info LIKE '%rs28399504=A%' 	AND marker_info LIKE '%rs56337013=C%' 	AND marker_info LIKE '%rs72552267=G%' 	AND marker_info LIKE '%rs72558186=T%' 	AND marker_info LIKE '%rs41291556=T%' 	AND marker_info LIKE '%rs12248560=C%' 	AND marker_info LIKE '%rs11188072=C%'", "");
@@ -157,13 +176,11 @@ public class PGXDBTests {
 		
 		List<String> markerList= new ArrayList<String>();
 		try {
-			ResultSet rs= PGXDB.executeQuery(sql);
+			List<String> rows= PGXDB.query(sql, PGXDB.FIRST_COLUMN_STRING_MAPPER);
 			
-			/* Just get the first line. According to the Java API:
-			 * "A ResultSet cursor is initially positioned before the first row;
-			 * the first call to the method next makes the first row the current row" */
-			if (rs.next())
-				markerList= Arrays.asList(((String) PGXDB.getRowAsList(rs).get(0)).split(";"));
+			/* Just get the first line. */
+			if (!rows.isEmpty())
+				markerList= Arrays.asList(rows.get(0).split(";"));
 					
 		} catch (SQLException se) {
 			stderr(test1);
@@ -299,6 +316,132 @@ public class PGXDBTests {
 	}
 	
 	
+	/**
+	 * Resolve unphased genotypes to their candidate diplotypes, for 0, 1 and
+	 * several heterozygous sites.
+	 */
+	private static void getUnphasedDiplotypes() {
+		String[] slco1b1Markers= { "rs4149015", "rs2306283", "rs2306282", "rs4149056" };
+		
+		printDiplotypeCandidates("Testing unphased SLCO1B1 with no heterozygous sites, should be *1/*1.",
+			"SLCO1B1", slco1b1Markers,
+			new String[] { "G", "A", "A", "T" },
+			new String[] { "G", "A", "A", "T" });
+		
+		printDiplotypeCandidates("Testing unphased SLCO1B1 heterozygous at rs4149056, should be *1/*5.",
+			"SLCO1B1", slco1b1Markers,
+			new String[] { "G", "A", "A", "T" },
+			new String[] { "G", "A", "A", "C" });
+		
+		printDiplotypeCandidates("Testing unphased SLCO1B1 heterozygous at rs2306283 and rs4149056, " +
+			"should be *1/*15 or *1B/*5.",
+			"SLCO1B1", slco1b1Markers,
+			new String[] { "G", "A", "A", "T" },
+			new String[] { "G", "G", "A", "C" });
+		
+		printDiplotypeCandidates("Testing unphased CYP2C19 heterozygous at rs4244285 and rs4986893, " +
+			"should only be *2/*3.",
+			"CYP2C19", new String[] { "rs4244285", "rs4986893" },
+			new String[] { "G", "G" },
+			new String[] { "A", "A" });
+	}
+	
+	
+	/**
+	 * Compare the haplotypes found by the compiled HaplotypeMatcher to the
+	 * haplotypes retrieved with the marker_info LIKE query it replaced.
+	 */
+	private static void compareHaplotypeMatcher() {
+		compareHaplotypeMatcher("CYP2C19");
+		compareHaplotypeMatcher("CYP2C19", "rs4244285=A");
+		compareHaplotypeMatcher("CYP2C19", "rs4244285=G", "rs4986893=G");
+		compareHaplotypeMatcher("CYP2C19", "rs12248560=T", "rs11188072=T");
+		compareHaplotypeMatcher("CYP2C19", "rs4244285=A", "rs4986893=A");
+		compareHaplotypeMatcher("SLCO1B1", "rs4149056=C");
+		compareHaplotypeMatcher("SLCO1B1", "rs2306283=G", "rs4149056=T");
+		compareHaplotypeMatcher("SLCO1B1", "rs4149015=A", "rs2306283=G", "rs2306282=A", "rs4149056=C");
+	}
+	
+	
+	/**
+	 * Compare the haplotypes of this gene that the HaplotypeMatcher and the
+	 * marker_info LIKE query find for these marker alleles.
+	 * @param gene the gene symbol
+	 * @param markerAlleles the marker alleles in the form "rs4244285=A"
+	 */
+	private static void compareHaplotypeMatcher(String gene, String ... markerAlleles) {
+		String test= "Testing the haplotype matcher against the LIKE query for " + gene +
+			" " + Arrays.toString(markerAlleles);
+		stdout(test);
+		
+		Map<String, String> markerAlleleMap= new LinkedHashMap<String, String>();
+		List<Object> parameters= new ArrayList<Object>();
+		parameters.add(gene);
+		
+		String sql=	"SELECT H.haplotype_symbol " +
+					"FROM haplotype_markers H " +
+					"WHERE gene = ? ";
+		for (String markerAllele : markerAlleles) {
+			String[] pair= markerAllele.split("=");
+			markerAlleleMap.put(pair[0], pair[1]);
+			sql +=	"	AND marker_info LIKE ? ";
+			parameters.add("%" + markerAllele + "%");
+		}
+		
+		try {
+			List<String> expected= PGXDB.query(sql, PGXDB.FIRST_COLUMN_STRING_MAPPER, parameters.toArray());
+			Collections.sort(expected, new NaturalOrderComparator());
+			List<String> matched= PGXDB.getKnowledgeBase().getHaplotypeMatcher(gene)
+				.getMatchingHaplotypes(markerAlleleMap);
+			
+			if (matched.equals(expected)) {
+				stdout("OK " + matched);
+			} else {
+				stderr(test + ": matcher found " + matched + ", LIKE query found " + expected);
+			}
+		} catch (SQLException se) {
+			stderr(test);
+			se.printStackTrace();
+		}
+	}
+	
+	
+	/**
+	 * Print the candidate diplotypes for these unphased genotypes to stdout.
+	 * @param test the test description, also used as the error message
+	 * @param gene the gene symbol
+	 * @param markers the genotyped markers
+	 * @param firstGenotypes the first genotype of each marker
+	 * @param secondGenotypes the second genotype of each marker
+	 */
+	private static void printDiplotypeCandidates(String test, String gene, String[] markers,
+		String[] firstGenotypes, String[] secondGenotypes) {
+		
+		stdout(test);
+		
+		Map<String, PGXGenotype> first= new HashMap<String, PGXGenotype>();
+		Map<String, PGXGenotype> second= new HashMap<String, PGXGenotype>();
+		for (int i= 0; i < markers.length; ++i) {
+			first.put(markers[i], new PGXGenotype(firstGenotypes[i], false, 0));
+			second.put(markers[i], new PGXGenotype(secondGenotypes[i], false, 0));
+		}
+		
+		PGXGene pg= new PGXGene(gene);
+		pg.setMaternalGenotypes(first);
+		pg.setPaternalGenotypes(second);
+		pg.setUnphased();
+		
+		try {
+			for (DiplotypeCandidate dc : PGXDBFunctions.getDiplotypeCandidates(pg)) {
+				stdout(dc.toString());
+			}
+		} catch (SQLException se) {
+			stderr(test);
+			se.printStackTrace();
+		}
+	}
+	
+	
 	/**
 	 * Print all rows from this query to stdout.
 	 * @param sql the SQL query
@@ -306,12 +449,10 @@ public class PGXDBTests {
 	 */
 	private static void printSQLResults(String sql, String errorMessage) {
 		try {
-			ResultSet rs= PGXDB.executeQuery(sql);
-			
 			/* Output all lines as they are stored in the DB. */
-			while (rs.next()) {
-				stdout(PGXDB.getRowAsList(rs).toString());
-			}		
+			for (List<Object> row : PGXDB.query(sql, ROW_AS_LIST_MAPPER)) {
+				stdout(row.toString());
+			}
 		} catch (SQLException se) {
 			stderr(errorMessage);
 			se.printStackTrace();
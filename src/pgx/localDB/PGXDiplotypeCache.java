@@ -0,0 +1,220 @@
+package pgx.localDB;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import pgx.PGXGenotype;
+
+/**
+ * Memoized diplotype calls, shared across patients.
+ *
+ * Most patients share a few genotype patterns for each gene, so calls are
+ * keyed by gene, the gene's knowledge base version and a signature of the
+ * maternal and paternal genotypes. The two signatures are stored in a
+ * canonical order, so a patient with the parental genotypes swapped uses
+ * the same entry. Entries for an older gene version are never matched
+ * after a knowledge base update and age out of the cache.
+ *
+ * Lookups don't lock. Once the cache holds more than MAX_ENTRIES calls, the
+ * oldest entries are discarded in insertion order.
+ */
+public class PGXDiplotypeCache {
+
+	/* The maximum number of diplotype calls kept. */
+	private static final int MAX_ENTRIES= 10000;
+
+	private final AtomicLong hits= new AtomicLong();
+	private final AtomicLong misses= new AtomicLong();
+	private final ConcurrentHashMap<String, DiplotypeCall> cache= new ConcurrentHashMap<String, DiplotypeCall>();
+	/* The cached keys in insertion order, for eviction. */
+	private final Queue<String> insertionOrder= new ConcurrentLinkedQueue<String>();
+
+
+	/**
+	 * Get the signature of a set of genotypes: the marker=genotype pairs
+	 * sorted by marker. Genotypes without a marker ID are skipped.
+	 * @param markerGenotypes a Map of genotypes keyed by marker
+	 * @return the signature String
+	 */
+	public static String getSignature(Map<String, PGXGenotype> markerGenotypes) {
+		List<String> markers= new ArrayList<String>(markerGenotypes.size());
+		for (String marker : markerGenotypes.keySet()) {
+			if (marker != null) {
+				markers.add(marker);
+			}
+		}
+		Collections.sort(markers);
+
+		StringBuilder signature= new StringBuilder();
+		for (String marker : markers) {
+			PGXGenotype genotype= markerGenotypes.get(marker);
+			signature.append(marker).append('=')
+				.append(genotype == null ? null : genotype.getGenotype()).append(';');
+		}
+
+		return signature.toString();
+	}
+
+
+	/**
+	 * Get the cached diplotype call for these genotype signatures.
+	 * @param gene the gene symbol
+	 * @param geneVersion the knowledge base version of the gene
+	 * @param maternalSignature the signature of the maternal genotypes
+	 * @param paternalSignature the signature of the paternal genotypes
+	 * @return the DiplotypeCall, with the maternal and paternal haplotypes in
+	 *	the order of the signatures; null if there is no cached call
+	 */
+	public DiplotypeCall get(String gene, long geneVersion, String maternalSignature, String paternalSignature) {
+		boolean swapped= isSwapped(maternalSignature, paternalSignature);
+		DiplotypeCall call= cache.get(swapped ?
+			getKey(gene, geneVersion, paternalSignature, maternalSignature) :
+			getKey(gene, geneVersion, maternalSignature, paternalSignature));
+
+		if (call == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+
+		return swapped ? call.swap() : call;
+	}
+
+
+	/**
+	 * Cache a diplotype call.
+	 * @param gene the gene symbol
+	 * @param geneVersion the knowledge base version of the gene
+	 * @param maternalSignature the signature of the maternal genotypes
+	 * @param paternalSignature the signature of the paternal genotypes
+	 * @param call the DiplotypeCall for these signatures
+	 */
+	public void put(String gene, long geneVersion, String maternalSignature, String paternalSignature,
+		DiplotypeCall call) {
+
+		String key;
+		if (isSwapped(maternalSignature, paternalSignature)) {
+			key= getKey(gene, geneVersion, paternalSignature, maternalSignature);
+			call= call.swap();
+		} else {
+			key= getKey(gene, geneVersion, maternalSignature, paternalSignature);
+		}
+
+		/* Only a new key joins the eviction queue. Concurrent puts may
+		 * briefly overshoot the bound before the oldest keys are removed. */
+		if (cache.put(key, call) == null) {
+			insertionOrder.add(key);
+			while (cache.size() > MAX_ENTRIES) {
+				String eldest= insertionOrder.poll();
+				if (eldest == null) {
+					break;
+				}
+				cache.remove(eldest);
+			}
+		}
+	}
+
+
+	/**
+	 * Get the number of lookups that found a cached call.
+	 * @return the hit count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+
+	/**
+	 * Get the number of lookups that did not find a cached call.
+	 * @return the miss count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+
+	/**
+	 * Get the number of cached calls.
+	 * @return the number of entries
+	 */
+	public int size() {
+		return cache.size();
+	}
+
+
+	/**
+	 * Discard all cached calls and reset the counters.
+	 */
+	public void clear() {
+		cache.clear();
+		insertionOrder.clear();
+		hits.set(0);
+		misses.set(0);
+	}
+
+
+	/**
+	 * Signatures are keyed in lexicographic order.
+	 */
+	private static boolean isSwapped(String maternalSignature, String paternalSignature) {
+		return maternalSignature.compareTo(paternalSignature) > 0;
+	}
+
+
+	/**
+	 * Tabs do not occur in gene symbols, markers or genotypes.
+	 */
+	private static String getKey(String gene, long geneVersion, String firstSignature, String secondSignature) {
+		return gene + "\t" + geneVersion + "\t" + firstSignature + "\t" + secondSignature;
+	}
+
+
+	/**
+	 * The haplotypes and diplotype called for a pair of parental genotypes.
+	 */
+	public static class DiplotypeCall {
+
+		private final String maternalHaplotype;
+		private final String paternalHaplotype;
+		private final String diplotype;
+
+		public DiplotypeCall(String maternalHaplotype, String paternalHaplotype, String diplotype) {
+			this.maternalHaplotype= maternalHaplotype;
+			this.paternalHaplotype= paternalHaplotype;
+			this.diplotype= diplotype;
+		}
+
+		/**
+		 * Get the maternal haplotype symbol.
+		 */
+		public String getMaternalHaplotype() {
+			return maternalHaplotype;
+		}
+
+		/**
+		 * Get the paternal haplotype symbol.
+		 */
+		public String getPaternalHaplotype() {
+			return paternalHaplotype;
+		}
+
+		/**
+		 * Get the diplotype, which doesn't depend on the parental order.
+		 */
+		public String getDiplotype() {
+			return diplotype;
+		}
+
+		/**
+		 * Get this call with the maternal and paternal haplotypes exchanged.
+		 */
+		private DiplotypeCall swap() {
+			return new DiplotypeCall(paternalHaplotype, maternalHaplotype, diplotype);
+		}
+	}
+}
@@ -0,0 +1,643 @@
+package pgx.localDB;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import pgx.localDB.PGXDBFunctions.PGXMarker;
+
+/**
+ * Indexed view of the local pharmacogenomics DB tables.
+ *
+ * The lookups made for every gene of every patient (markers, marker
+ * coordinates and reference alleles, haplotype definitions and activities,
+ * metabolizer classes and PubMed IDs) are served from maps, instead of
+ * building and parsing an SQL query for each lookup.
+ *
+ * Only the gene list, each gene's marker list and the metabolizer classes
+ * are read when the knowledge base is created. The marker coordinates of all
+ * genes are read with a single query the first time any coordinates are
+ * requested, which also serves the lookups over all genes used to assign
+ * variants to genes. The haplotypes and activities of a gene are read from
+ * the DB the first time any of them is requested, and kept for later
+ * requests, along with the gene's compiled HaplotypeMatcher. All content is
+ * immutable once loaded, so the knowledge base can be shared by concurrent
+ * analyses.
+ *
+ * Keys are matched case-insensitively, like the DB, which is created with
+ * IGNORECASE. Where the DB holds several rows for the same marker or
+ * coordinate, the first row in primary key order is used, as the previous
+ * queries did.
+ *
+ * Each knowledge base is a version of the DB content and never changes once
+ * created. An update creates a new version that shares the loaded content of
+ * the genes it didn't change with the previous version, while the previous
+ * version keeps the content it had before the update for the analyses still
+ * using it. See {@link PGXDB#applyUpdate(PGXKnowledgeBaseDelta)}.
+ */
+public class PGXKnowledgeBase {
+
+	/* The version of the knowledge base loaded from the packaged files. */
+	public static final long BASE_VERSION= 0;
+	/* Cached for coordinates without a marker. */
+	private static final String NO_MARKER= "";
+	/* Matches nothing, for genes that are not in the knowledge base. */
+	private static final HaplotypeMatcher EMPTY_MATCHER= new HaplotypeMatcher(
+		Collections.<String>emptyList(), Collections.<String, Map<String, Set<String>>>emptyMap());
+
+	private final long version;
+	private final List<String> genes;
+	private final Map<String, String> geneSymbols;
+	private final Map<String, List<String>> geneMarkers;
+	private final Map<String, Map<String, String>> activityPairMetabolizers;
+	/* Content of each gene loaded so far, keyed by gene symbol as listed in
+	 * the DB. */
+	private final ConcurrentMap<String, GeneKnowledge> loadedGenes= new ConcurrentHashMap<String, GeneKnowledge>();
+	/* The version in which the content of each gene last changed. */
+	private final Map<String, Long> geneVersions;
+	/* Marker IDs looked up so far, keyed by coordinate key. */
+	private final ConcurrentMap<String, String> markerIDs=
+		new ConcurrentSkipListMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+	/* The coordinates of every marker, read on first use, and the
+	 * coordinates of each gene's markers taken from them. */
+	private volatile Map<String, PGXMarker> allMarkerInfo;
+	private final ConcurrentMap<String, GeneCoordinates> geneCoordinates=
+		new ConcurrentHashMap<String, GeneCoordinates>();
+	/* Lookups over the markers of all genes, built on first use. */
+	private volatile Map<String, List<String>> markerCoordinateGenes;
+	private volatile Map<String, Map<String, Integer>> lastMarkerPositions;
+
+	/* Maps a row to an array of its String values. */
+	private static final PGXDB.RowMapper<String[]> STRING_ROW_MAPPER= new PGXDB.RowMapper<String[]>() {
+		@Override
+		public String[] mapRow(ResultSet rs) throws SQLException {
+			String[] row= new String[rs.getMetaData().getColumnCount()];
+			for (int i= 0; i < row.length; ++i) {
+				row[i]= rs.getString(i + 1);
+			}
+			return row;
+		}
+	};
+
+
+	/**
+	 * Read the gene list, marker lists and metabolizer classes from the DB.
+	 * @param c the DB connection, with all tables loaded
+	 */
+	PGXKnowledgeBase(Connection c) throws SQLException {
+		this(c, BASE_VERSION, null, Collections.<String>emptySet(), Collections.<String>emptySet());
+	}
+
+
+	/**
+	 * Read the gene list, marker lists and metabolizer classes of an updated
+	 * DB. The content already loaded by the previous version is reused,
+	 * except for the updated genes and coordinates.
+	 * @param c the DB connection, with the update committed
+	 * @param version the version of this knowledge base
+	 * @param previous the previous version; null if there is none
+	 * @param updatedGenes the genes whose content changed since the previous
+	 *	version, matched case-insensitively
+	 * @param updatedCoordinates the coordinate keys whose marker may have
+	 *	changed since the previous version, matched case-insensitively
+	 */
+	PGXKnowledgeBase(Connection c, long version, PGXKnowledgeBase previous,
+		Set<String> updatedGenes, Set<String> updatedCoordinates) throws SQLException {
+
+		this.version= version;
+		Statement s= c.createStatement();
+		try {
+			/* Genes and their markers. */
+			List<String> geneList= new ArrayList<String>();
+			Map<String, String> symbols= newCaseInsensitiveMap();
+			Map<String, List<String>> markersByGene= newCaseInsensitiveMap();
+			ResultSet rs= s.executeQuery(
+				"SELECT G.gene, G.marker_list FROM gene_marker_list G ORDER BY G.gene");
+			while (rs.next()) {
+				geneList.add(rs.getString(1));
+				symbols.put(rs.getString(1), rs.getString(1));
+				markersByGene.put(rs.getString(1),
+					Collections.unmodifiableList(Arrays.asList(rs.getString(2).split(";"))));
+			}
+			this.genes= Collections.unmodifiableList(geneList);
+			this.geneSymbols= Collections.unmodifiableMap(symbols);
+			this.geneMarkers= Collections.unmodifiableMap(markersByGene);
+
+			/* Metabolizer classes, keyed by both orders of the activity pair
+			 * since haplotype order is irrelevant. */
+			Map<String, Map<String, String>> metabolizers= newCaseInsensitiveMap();
+			rs= s.executeQuery(
+				"SELECT P.haplotype_1_activity, P.haplotype_2_activity, P.metabolizer_class " +
+				"FROM phenotype_to_metabolizer P");
+			while (rs.next()) {
+				putActivityPair(metabolizers, rs.getString(1), rs.getString(2), rs.getString(3));
+				putActivityPair(metabolizers, rs.getString(2), rs.getString(1), rs.getString(3));
+			}
+			for (Map.Entry<String, Map<String, String>> e : metabolizers.entrySet()) {
+				e.setValue(Collections.unmodifiableMap(e.getValue()));
+			}
+			this.activityPairMetabolizers= Collections.unmodifiableMap(metabolizers);
+		} finally {
+			s.close();
+		}
+
+		/* Keep the versions and loaded content of the unchanged genes. */
+		Map<String, Long> versions= newCaseInsensitiveMap();
+		for (String gene : genes) {
+			boolean isUnchanged= previous != null && !updatedGenes.contains(gene) &&
+				previous.geneSymbols.containsKey(gene);
+			versions.put(gene, isUnchanged ? previous.getGeneVersion(gene) : version);
+		}
+		this.geneVersions= Collections.unmodifiableMap(versions);
+
+		if (previous != null) {
+			for (Map.Entry<String, GeneKnowledge> e : previous.loadedGenes.entrySet()) {
+				if (!updatedGenes.contains(e.getKey()) && geneSymbols.containsKey(e.getKey())) {
+					loadedGenes.put(geneSymbols.get(e.getKey()), e.getValue());
+				}
+			}
+			for (Map.Entry<String, String> e : previous.markerIDs.entrySet()) {
+				if (!updatedCoordinates.contains(e.getKey())) {
+					markerIDs.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Get the version of this knowledge base.
+	 * @return the version; BASE_VERSION if it has not been updated
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+
+	/**
+	 * Get the version in which the content of this gene last changed.
+	 * Content built from an earlier version for an unchanged gene is still
+	 * valid in this version.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return the version; this knowledge base's version if the gene is not found
+	 */
+	public long getGeneVersion(String gene) {
+		Long geneVersion= gene == null ? null : geneVersions.get(gene);
+		return geneVersion == null ? version : geneVersion;
+	}
+
+
+	/**
+	 * Get all genes in the knowledge base. This does not load any gene.
+	 * @return an unmodifiable List of gene symbols, sorted
+	 */
+	public List<String> getGenes() {
+		return genes;
+	}
+
+
+	/**
+	 * Get the markers for this gene. This does not load the gene.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return an unmodifiable List of marker IDs; empty if the gene is not found
+	 */
+	public List<String> getMarkers(String gene) {
+		List<String> markers= gene == null ? null : geneMarkers.get(gene);
+		return markers == null ? Collections.<String>emptyList() : markers;
+	}
+
+
+	/**
+	 * Get the coordinates of the markers for this gene. Markers without
+	 * coordinates are omitted.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return an unmodifiable Map of PGXMarker objects keyed by marker ID
+	 */
+	public Map<String, PGXMarker> getMarkerInfo(String gene) throws SQLException {
+		GeneCoordinates gc= getGeneCoordinates(gene);
+		return gc == null ? Collections.<String, PGXMarker>emptyMap() : gc.markerInfo;
+	}
+
+
+	/**
+	 * Get the reference nucleotides of the markers for this gene. Markers
+	 * without coordinates are omitted.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return an unmodifiable Map of reference nucleotides keyed by marker ID
+	 */
+	public Map<String, String> getMarkerRefs(String gene) throws SQLException {
+		GeneCoordinates gc= getGeneCoordinates(gene);
+		return gc == null ? Collections.<String, String>emptyMap() : gc.markerRefs;
+	}
+
+
+	/**
+	 * Get the haplotype definitions for this gene.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return an unmodifiable Map keyed by haplotype symbol, of unmodifiable
+	 *	Maps of the haplotype's unmodifiable Sets of alleles keyed by marker
+	 *	ID; a haplotype may define several alleles of a marker, and
+	 *	haplotypes without any marker alleles have an empty Map
+	 */
+	public Map<String, Map<String, Set<String>>> getHaplotypeAlleles(String gene) throws SQLException {
+		GeneKnowledge gk= getGeneKnowledge(gene);
+		return gk == null ? Collections.<String, Map<String, Set<String>>>emptyMap() : gk.haplotypeAlleles;
+	}
+
+
+	/**
+	 * Get the compiled matcher for the haplotype definitions of this gene.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return the HaplotypeMatcher; one without any haplotypes if the gene is not found
+	 */
+	public HaplotypeMatcher getHaplotypeMatcher(String gene) throws SQLException {
+		GeneKnowledge gk= getGeneKnowledge(gene);
+		return gk == null ? EMPTY_MATCHER : gk.haplotypeMatcher;
+	}
+
+
+	/**
+	 * Get the marker at these coordinates. The first lookup of each
+	 * coordinate is an indexed DB lookup and does not load any gene.
+	 * @param chromosome the chromosome (not case sensitive)
+	 * @param position the position
+	 * @return the marker ID; null if there is no marker at these coordinates
+	 */
+	public String getMarkerID(String chromosome, long position) throws SQLException {
+		if (chromosome == null) {
+			return null;
+		}
+
+		String key= getCoordinateKey(chromosome, Long.toString(position));
+		String marker= markerIDs.get(key);
+		if (marker == null) {
+			List<String> markers= PGXDB.query(
+				"SELECT M.marker " +
+				"FROM marker_coordinates M " +
+				"WHERE M.chromosome = ? " +
+				"	AND M.position = ? " +
+				"ORDER BY M.marker, M.alt",
+				PGXDB.FIRST_COLUMN_STRING_MAPPER, chromosome, position);
+			String found= markers.isEmpty() ? NO_MARKER : markers.get(0);
+			marker= markerIDs.putIfAbsent(key, found);
+			if (marker == null) {
+				marker= found;
+			}
+		}
+
+		return marker.equals(NO_MARKER) ? null : marker;
+	}
+
+
+	/**
+	 * Get a map of marker coordinates to the genes with a marker at those
+	 * coordinates. This does not load any gene.
+	 * @return an unmodifiable Map of gene symbol Lists keyed by coordinate key
+	 */
+	public Map<String, List<String>> getMarkerCoordinateGenes() throws SQLException {
+		if (markerCoordinateGenes == null) {
+			Map<String, List<String>> output= new HashMap<String, List<String>>();
+			for (String gene : genes) {
+				for (PGXMarker pgxm : getMarkerInfo(gene).values()) {
+					String key= getCoordinateKey(pgxm.chromosome, pgxm.position);
+					if (!output.containsKey(key)) {
+						output.put(key, new LinkedList<String>());
+					}
+
+					// the same position can be a marker for more than one gene
+					if (!output.get(key).contains(gene)) {
+						output.get(key).add(gene);
+					}
+				}
+			}
+			markerCoordinateGenes= Collections.unmodifiableMap(output);
+		}
+
+		return markerCoordinateGenes;
+	}
+
+
+	/**
+	 * Get a map of each gene to the last marker position for that gene on
+	 * each chromosome. This does not load any gene.
+	 * @return an unmodifiable Map of positions keyed by chromosome, keyed by gene symbol
+	 */
+	public Map<String, Map<String, Integer>> getLastMarkerPositions() throws SQLException {
+		if (lastMarkerPositions == null) {
+			Map<String, Map<String, Integer>> output= new HashMap<String, Map<String, Integer>>();
+			for (String gene : genes) {
+				Map<String, Integer> positions= new HashMap<String, Integer>();
+				for (PGXMarker pgxm : getMarkerInfo(gene).values()) {
+					int position= Integer.parseInt(pgxm.position);
+					if (!positions.containsKey(pgxm.chromosome) ||
+						positions.get(pgxm.chromosome) < position) {
+						positions.put(pgxm.chromosome, position);
+					}
+				}
+				output.put(gene, positions);
+			}
+			lastMarkerPositions= Collections.unmodifiableMap(output);
+		}
+
+		return lastMarkerPositions;
+	}
+
+
+	/**
+	 * Get the lookup key for a chromosomal coordinate.
+	 * @param chromosome the chromosome
+	 * @param position the position stored as a string
+	 * @return the key String
+	 */
+	public static String getCoordinateKey(String chromosome, String position) {
+		return chromosome + "_" + position; // the underscore is critical; don't delete it
+	}
+
+
+	/**
+	 * Get the activity phenotype of a haplotype.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @param haplotype the haplotype symbol (not case sensitive)
+	 * @return the activity phenotype; null if it doesn't exist
+	 */
+	public String getActivity(String gene, String haplotype) throws SQLException {
+		GeneKnowledge gk= getGeneKnowledge(gene);
+		if (gk == null || haplotype == null) {
+			return null;
+		}
+		return gk.haplotypeActivities.get(haplotype);
+	}
+
+
+	/**
+	 * Get the metabolizer class for a pair of haplotype activity phenotypes.
+	 * @param hap1Activity activity phenotype for haplotype 1; haplotype order is irrelevant
+	 * @param hap2Activity activity phenotype for haplotype 2; haplotype order is irrelevant
+	 * @return the metabolizer class; null if it doesn't exist
+	 */
+	public String getMetabolizerClass(String hap1Activity, String hap2Activity) {
+		if (hap1Activity == null || hap2Activity == null) {
+			return null;
+		}
+		Map<String, String> metabolizers= activityPairMetabolizers.get(hap1Activity);
+		return metabolizers == null ? null : metabolizers.get(hap2Activity);
+	}
+
+
+	/**
+	 * Get the PubMed IDs of the guidelines for this gene.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return an unmodifiable List of PubMed IDs; empty if the gene is not found
+	 */
+	public List<String> getPubMedIDs(String gene) throws SQLException {
+		GeneKnowledge gk= getGeneKnowledge(gene);
+		return gk == null ? Collections.<String>emptyList() : gk.pubMedIDs;
+	}
+
+
+	/**
+	 * Check if the content of this gene has been loaded.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return true if the gene has been loaded, false otherwise
+	 */
+	public boolean isLoaded(String gene) {
+		String symbol= gene == null ? null : geneSymbols.get(gene);
+		return symbol != null && loadedGenes.containsKey(symbol);
+	}
+
+
+	/**
+	 * Load the content of these genes, the coordinates of all markers and the
+	 * markers at these coordinates, if they haven't been loaded yet, so that
+	 * this version keeps them when the DB is updated.
+	 * @param geneList the gene symbols (not case sensitive)
+	 * @param coordinates the coordinates to look up
+	 */
+	void load(Collection<String> geneList, Collection<PGXMarker> coordinates) throws SQLException {
+		getAllMarkerInfo();
+		for (String gene : geneList) {
+			getGeneKnowledge(gene);
+		}
+		for (PGXMarker pgxm : coordinates) {
+			getMarkerID(pgxm.chromosome, Long.parseLong(pgxm.position));
+		}
+	}
+
+
+	/**
+	 * Get the coordinates of every marker, reading them from the DB with a
+	 * single query on first access. Where a marker has several rows, the
+	 * first in (position, alt) order is used.
+	 * @return an unmodifiable case-insensitive Map of PGXMarker objects keyed by marker ID
+	 */
+	private Map<String, PGXMarker> getAllMarkerInfo() throws SQLException {
+		Map<String, PGXMarker> output= allMarkerInfo;
+		if (output == null) {
+			/* Concurrent first accesses may both read the table; the content
+			 * is the same. */
+			output= newCaseInsensitiveMap();
+			for (PGXMarker pgxm : PGXDB.query(
+				"SELECT M.marker, M.chromosome, M.position, M.ref, M.alt " +
+				"FROM marker_coordinates M " +
+				"ORDER BY M.marker, M.position, M.alt",
+				PGXDB.MARKER_MAPPER)) {
+				if (!output.containsKey(pgxm.markerID)) {
+					output.put(pgxm.markerID, pgxm);
+				}
+			}
+			output= Collections.unmodifiableMap(output);
+			allMarkerInfo= output;
+		}
+
+		return output;
+	}
+
+
+	/**
+	 * Get the coordinates of the markers for this gene.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return the GeneCoordinates; null if the gene is not in the knowledge base
+	 */
+	private GeneCoordinates getGeneCoordinates(String gene) throws SQLException {
+		String symbol= gene == null ? null : geneSymbols.get(gene);
+		if (symbol == null) {
+			return null;
+		}
+
+		GeneCoordinates gc= geneCoordinates.get(symbol);
+		if (gc == null) {
+			GeneCoordinates found= new GeneCoordinates(geneMarkers.get(symbol), getAllMarkerInfo());
+			gc= geneCoordinates.putIfAbsent(symbol, found);
+			if (gc == null) {
+				gc= found;
+			}
+		}
+
+		return gc;
+	}
+
+
+	/**
+	 * Get the content of this gene, loading it from the DB on first access.
+	 * @param gene the gene symbol (not case sensitive)
+	 * @return the GeneKnowledge; null if the gene is not in the knowledge base
+	 */
+	private GeneKnowledge getGeneKnowledge(String gene) throws SQLException {
+		String symbol= gene == null ? null : geneSymbols.get(gene);
+		if (symbol == null) {
+			return null;
+		}
+
+		GeneKnowledge gk= loadedGenes.get(symbol);
+		if (gk == null) {
+			/* The gene takes several queries, so load it under the read lock
+			 * to keep an update from being written between them. An update
+			 * written while waiting for the lock has already had this version
+			 * load the genes it changes, so check again once it is held. */
+			PGXDB.getReadLock().lock();
+			try {
+				gk= loadedGenes.get(symbol);
+				if (gk == null) {
+					/* Concurrent first accesses may both load the gene; the
+					 * content is the same, so keep whichever is stored first. */
+					GeneKnowledge loaded= new GeneKnowledge(symbol, geneMarkers.get(symbol));
+					gk= loadedGenes.putIfAbsent(symbol, loaded);
+					if (gk == null) {
+						gk= loaded;
+					}
+				}
+			} finally {
+				PGXDB.getReadLock().unlock();
+			}
+		}
+
+		return gk;
+	}
+
+
+	/**
+	 * Add a metabolizer class for an ordered pair of activity phenotypes.
+	 */
+	private static void putActivityPair(Map<String, Map<String, String>> metabolizers,
+		String activity1, String activity2, String metabolizerClass) {
+
+		if (!metabolizers.containsKey(activity1)) {
+			metabolizers.put(activity1, PGXKnowledgeBase.<String>newCaseInsensitiveMap());
+		}
+		metabolizers.get(activity1).put(activity2, metabolizerClass);
+	}
+
+
+	/**
+	 * Create a map with case-insensitive String keys, matching the DB.
+	 */
+	private static <V> Map<String, V> newCaseInsensitiveMap() {
+		return new TreeMap<String, V>(String.CASE_INSENSITIVE_ORDER);
+	}
+
+
+	/**
+	 * The coordinates and reference nucleotides of the markers of a single
+	 * gene. Not all markers have coordinates.
+	 */
+	private static class GeneCoordinates {
+
+		private final Map<String, PGXMarker> markerInfo;
+		private final Map<String, String> markerRefs;
+
+
+		/**
+		 * Take the coordinates of this gene's markers.
+		 * @param markers the markers for this gene
+		 * @param allMarkerInfo the coordinates of all markers
+		 */
+		public GeneCoordinates(List<String> markers, Map<String, PGXMarker> allMarkerInfo) {
+			Map<String, PGXMarker> info= new HashMap<String, PGXMarker>();
+			Map<String, String> refs= new HashMap<String, String>();
+			for (String marker : markers) {
+				PGXMarker pgxm= allMarkerInfo.get(marker);
+				if (pgxm != null) {
+					info.put(marker, pgxm);
+					refs.put(marker, pgxm.ref);
+				}
+			}
+			this.markerInfo= Collections.unmodifiableMap(info);
+			this.markerRefs= Collections.unmodifiableMap(refs);
+		}
+	}
+
+
+	/**
+	 * The haplotypes and activities of a single gene.
+	 */
+	private static class GeneKnowledge {
+
+		private final Map<String, Map<String, Set<String>>> haplotypeAlleles;
+		private final HaplotypeMatcher haplotypeMatcher;
+		private final Map<String, String> haplotypeActivities;
+		private final List<String> pubMedIDs;
+
+
+		/**
+		 * Read the content of this gene from the DB.
+		 * @param gene the gene symbol as listed in the DB
+		 * @param markers the markers for this gene
+		 */
+		public GeneKnowledge(String gene, List<String> markers) throws SQLException {
+			/* Haplotype definitions, including haplotypes without markers. */
+			Map<String, Map<String, Set<String>>> alleles= newCaseInsensitiveMap();
+			for (String haplotype : PGXDB.query(
+				"SELECT H.haplotype_symbol FROM haplotype_markers H WHERE H.gene = ?",
+				PGXDB.FIRST_COLUMN_STRING_MAPPER, gene)) {
+				alleles.put(haplotype, new LinkedHashMap<String, Set<String>>());
+			}
+			/* A haplotype may list several alleles for the same marker. */
+			for (String[] row : PGXDB.query(
+				"SELECT A.haplotype_symbol, A.marker, A.allele " +
+				"FROM haplotype_alleles A WHERE A.gene = ?",
+				STRING_ROW_MAPPER, gene)) {
+				Map<String, Set<String>> markerAlleles= alleles.get(row[0]);
+				if (!markerAlleles.containsKey(row[1])) {
+					markerAlleles.put(row[1], new LinkedHashSet<String>());
+				}
+				markerAlleles.get(row[1]).add(row[2]);
+			}
+			for (Map.Entry<String, Map<String, Set<String>>> e : alleles.entrySet()) {
+				for (Map.Entry<String, Set<String>> markerAlleles : e.getValue().entrySet()) {
+					markerAlleles.setValue(Collections.unmodifiableSet(markerAlleles.getValue()));
+				}
+				e.setValue(Collections.unmodifiableMap(e.getValue()));
+			}
+			this.haplotypeAlleles= Collections.unmodifiableMap(alleles);
+			this.haplotypeMatcher= new HaplotypeMatcher(markers, haplotypeAlleles);
+
+			/* Haplotype activities and PubMed IDs. */
+			Map<String, String> activities= newCaseInsensitiveMap();
+			List<String> pmIDs= Collections.emptyList();
+			for (String[] row : PGXDB.query(
+				"SELECT A.haplotype, A.activity_phenotype, A.pubmed_id " +
+				"FROM haplotype_activity A WHERE A.gene = ?",
+				STRING_ROW_MAPPER, gene)) {
+				activities.put(row[0], row[1]);
+				pmIDs= Collections.unmodifiableList(Arrays.asList(row[2].split(";")));
+			}
+			this.haplotypeActivities= Collections.unmodifiableMap(activities);
+			this.pubMedIDs= pmIDs;
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package pgx.localDB;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * A versioned set of added or changed knowledge base rows, applied to the
+ * live knowledge base with {@link PGXDB#applyUpdate(PGXKnowledgeBaseDelta)}.
+ *
+ * Each row replaces the DB row with the same primary key, or is added if
+ * there is no such row. Rows cannot be removed with a delta.
+ */
+public class PGXKnowledgeBaseDelta {
+
+	private final long version;
+	private final List<Object[]> geneMarkerListRows= new ArrayList<Object[]>();
+	private final List<Object[]> haplotypeMarkersRows= new ArrayList<Object[]>();
+	private final List<Object[]> markerCoordinatesRows= new ArrayList<Object[]>();
+	private final List<Object[]> haplotypeActivityRows= new ArrayList<Object[]>();
+	/* Genes and markers named by the rows, matched case-insensitively like
+	 * the DB. */
+	private final Set<String> genes= new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+	private final Set<String> markers= new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+
+	/**
+	 * Create an empty delta.
+	 * @param version the knowledge base version after this delta is applied;
+	 *	must be greater than the version it is applied to
+	 */
+	public PGXKnowledgeBaseDelta(long version) {
+		this.version= version;
+	}
+
+
+	/**
+	 * Get the knowledge base version after this delta is applied.
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+
+	/**
+	 * Add or replace the marker list of a gene.
+	 * @param gene the gene symbol
+	 * @param markerList the marker IDs of this gene
+	 */
+	public void setGeneMarkers(String gene, List<String> markerList) {
+		geneMarkerListRows.add(new Object[] { gene, StringUtils.join(markerList, ';') });
+		genes.add(gene);
+	}
+
+
+	/**
+	 * Add or replace a haplotype definition.
+	 * @param gene the gene symbol
+	 * @param haplotypeID the haplotype ID; may be null
+	 * @param haplotypeSymbol the * nomenclature haplotype symbol
+	 * @param markerInfo the semicolon-delimited marker=allele list; may be null
+	 *	for a haplotype without any marker alleles
+	 */
+	public void setHaplotype(String gene, String haplotypeID, String haplotypeSymbol, String markerInfo) {
+		haplotypeMarkersRows.add(new Object[] { gene, haplotypeID, haplotypeSymbol, markerInfo });
+		genes.add(gene);
+	}
+
+
+	/**
+	 * Add or replace the coordinates of a marker allele.
+	 * @param marker the marker ID
+	 * @param chromosome the chromosome
+	 * @param position the position
+	 * @param ref the reference nucleotides
+	 * @param alt the alternate nucleotides
+	 */
+	public void setMarkerCoordinates(String marker, String chromosome, int position, String ref, String alt) {
+		markerCoordinatesRows.add(new Object[] { marker, chromosome, position, ref, alt });
+		markers.add(marker);
+	}
+
+
+	/**
+	 * Add or replace the activity of a haplotype.
+	 * @param gene the gene symbol
+	 * @param haplotype the haplotype symbol
+	 * @param activityScore the activity score; may be null
+	 * @param activityPhenotype the activity phenotype
+	 * @param pubMedIDs the semicolon-delimited PubMed IDs of the guidelines
+	 */
+	public void setHaplotypeActivity(String gene, String haplotype, Double activityScore,
+		String activityPhenotype, String pubMedIDs) {
+
+		haplotypeActivityRows.add(new Object[] { gene, haplotype, activityScore, activityPhenotype, pubMedIDs });
+		genes.add(gene);
+	}
+
+
+	/**
+	 * Check if this delta has any rows.
+	 * @return true if there are no rows, false otherwise
+	 */
+	public boolean isEmpty() {
+		return genes.isEmpty() && markers.isEmpty();
+	}
+
+
+	/**
+	 * Get the genes named by the gene marker list, haplotype and activity rows.
+	 * @return an unmodifiable case-insensitive Set of gene symbols
+	 */
+	public Set<String> getGenes() {
+		return Collections.unmodifiableSet(genes);
+	}
+
+
+	/**
+	 * Get the markers named by the marker coordinate rows.
+	 * @return an unmodifiable case-insensitive Set of marker IDs
+	 */
+	public Set<String> getMarkers() {
+		return Collections.unmodifiableSet(markers);
+	}
+
+
+	/**
+	 * Rows for the gene_marker_list table, in column order.
+	 */
+	List<Object[]> getGeneMarkerListRows() {
+		return geneMarkerListRows;
+	}
+
+
+	/**
+	 * Rows for the haplotype_markers table, in column order.
+	 */
+	List<Object[]> getHaplotypeMarkersRows() {
+		return haplotypeMarkersRows;
+	}
+
+
+	/**
+	 * Rows for the marker_coordinates table, in column order.
+	 */
+	List<Object[]> getMarkerCoordinatesRows() {
+		return markerCoordinatesRows;
+	}
+
+
+	/**
+	 * Rows for the haplotype_activity table, in column order.
+	 */
+	List<Object[]> getHaplotypeActivityRows() {
+		return haplotypeActivityRows;
+	}
+}